@@ -29,9 +29,14 @@ import dagger.Provides
 
 import java.util.concurrent.Executors
 import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
 
 import javax.inject.Singleton
 
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+
 @Module
 class UpdaterModule(private val context: Context) {
     @Provides
@@ -53,4 +58,18 @@ class UpdaterModule(private val context: Context) {
     @Singleton
     @Provides
     fun provideWorkManager() = WorkManager.getInstance(context)
+
+    // Shared by downloads and metadata fetches so that connections and TLS sessions get reused
+    @Singleton
+    @Provides
+    fun provideOkHttpClient(): OkHttpClient = OkHttpClient.Builder()
+        .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+        .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+        .retryOnConnectionFailure(true)
+        .build()
+
+    companion object {
+        private const val MAX_IDLE_CONNECTIONS = 8
+        private const val KEEP_ALIVE_MINUTES = 5L
+    }
 }
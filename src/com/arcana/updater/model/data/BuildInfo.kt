@@ -16,14 +16,28 @@
 
 package com.arcana.updater.model.data
 
-data class BuildInfo(
+data class BuildInfo @JvmOverloads constructor(
     val version: String,
     val date: Long,
     val url: String,
     val fileName: String,
     val fileSize: Long,
     val md5: String,
+    // Other urls the same file can be downloaded from
+    val mirrors: List<String> = emptyList(),
+    // Position of payload.bin in the package and payload_properties.txt, -1 and empty if unknown
+    val payloadOffset: Long = -1,
+    val payloadSize: Long = -1,
+    val payloadProperties: List<String> = emptyList(),
+    // Full package to fall back to if this is an incremental one, null otherwise
+    val fullBuild: BuildInfo? = null,
 ) {
+    val isIncremental: Boolean
+        get() = fullBuild != null
+
+    // Same package, downloaded from @param url and @param mirrors
+    fun withUrls(url: String, mirrors: List<String>) = copy(url = url, mirrors = mirrors)
+
     companion object {
         const val VERSION = "version"
         const val DATE = "date"
@@ -31,5 +45,9 @@ data class BuildInfo(
         const val FILE_NAME = "fileName"
         const val FILE_SIZE = "fileSize"
         const val MD5 = "md5"
+        const val MIRRORS = "mirrors"
+        const val PAYLOAD_OFFSET = "payloadOffset"
+        const val PAYLOAD_SIZE = "payloadSize"
+        const val PAYLOAD_PROPERTIES = "payloadProperties"
     }
 }
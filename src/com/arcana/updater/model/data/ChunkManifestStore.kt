@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import android.content.Context
+import android.util.Log
+
+import com.arcana.updater.model.retrofit.data.ChunkManifest
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+
+import java.io.File
+import java.io.IOException
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/*
+ * Keeps the ChunkManifest of the current build as a file, since it's
+ * far too large for SharedPreferences. Manifests are stored by the md5
+ * of their package so that a stale one is never used for another build.
+ */
+@Singleton
+class ChunkManifestStore @Inject constructor(context: Context) {
+
+    private val manifestDir = File(context.filesDir, MANIFEST_DIR)
+    private val gson = Gson()
+
+    // Replace any stored manifest with @param manifest for the package with @param md5
+    @Synchronized
+    fun update(md5: String, manifest: ChunkManifest?) {
+        manifestDir.listFiles()?.forEach { it.delete() }
+        if (manifest == null) return
+        if (!manifestDir.isDirectory() && !manifestDir.mkdirs()) {
+            Log.e(TAG, "failed to create ${manifestDir.absolutePath}")
+            return
+        }
+        try {
+            getFile(md5).writeText(gson.toJson(manifest))
+        } catch (e: IOException) {
+            Log.e(TAG, "IOException when saving chunk manifest", e)
+        }
+    }
+
+    // Returns the manifest for the package with @param md5 if there is one
+    @Synchronized
+    fun get(md5: String): ChunkManifest? {
+        val file = getFile(md5)
+        if (!file.isFile()) return null
+        return try {
+            gson.fromJson(file.readText(), ChunkManifest::class.java)
+        } catch (e: IOException) {
+            Log.e(TAG, "IOException when reading chunk manifest", e)
+            null
+        } catch (e: JsonParseException) {
+            Log.e(TAG, "malformed chunk manifest ${file.absolutePath}", e)
+            null
+        }
+    }
+
+    private fun getFile(md5: String) = File(manifestDir, "$md5.json")
+
+    companion object {
+        private const val TAG = "ChunkManifestStore"
+        private const val MANIFEST_DIR = "chunk_manifests"
+    }
+}
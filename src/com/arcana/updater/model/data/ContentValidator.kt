@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+/*
+ * Validator (strong ETag or Last-Modified) that @param url returned
+ * for the content. Validators are only comparable for the same url,
+ * since every mirror generates its own.
+ */
+data class ContentValidator(
+    val url: String,
+    val value: String,
+) {
+    // Serialize as "url value", urls never contain spaces
+    fun serialize() = "$url$DELIMITER$value"
+
+    companion object {
+        private const val DELIMITER = " "
+
+        // Parse a string created with serialize, returns null if malformed
+        @JvmStatic
+        fun parse(string: String?): ContentValidator? {
+            val index = string?.indexOf(DELIMITER) ?: return null
+            if (index <= 0 || index == string.length - 1) return null
+            return ContentValidator(string.substring(0, index), string.substring(index + 1))
+        }
+    }
+}
@@ -16,20 +16,38 @@
 
 package com.arcana.updater.model.data;
 
+import static com.arcana.updater.util.Constants.AUTO_DOWNLOAD_KEY;
+import static com.arcana.updater.util.Constants.BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY;
+import static com.arcana.updater.util.Constants.CELLULAR_CAP_KEY;
+import static com.arcana.updater.util.Constants.DOWNLOAD_CONNECTIONS_KEY;
 import static com.arcana.updater.util.Constants.DOWNLOAD_ID;
+import static com.arcana.updater.util.Constants.DOWNLOAD_RATE_LIMIT_KEY;
+import static com.arcana.updater.util.Constants.DOWNLOAD_SEGMENTS;
 import static com.arcana.updater.util.Constants.DOWNLOAD_STATUS;
+import static com.arcana.updater.util.Constants.DOWNLOAD_VALIDATOR;
 import static com.arcana.updater.util.Constants.DOWNLOADED_PERCENT;
 import static com.arcana.updater.util.Constants.DOWNLOADED_SIZE;
 import static com.arcana.updater.util.Constants.ENTRY_DATE;
+import static com.arcana.updater.util.Constants.FAILED_INCREMENTAL;
 import static com.arcana.updater.util.Constants.GLOBAL_STATUS;
 import static com.arcana.updater.util.Constants.LOCAL_UPGRADE_FILE;
+import static com.arcana.updater.util.Constants.NETWORK_POLICY_KEY;
+import static com.arcana.updater.util.Constants.NETWORK_USAGE;
+import static com.arcana.updater.util.Constants.PACKAGE_INDEX;
+import static com.arcana.updater.util.Constants.PIPELINED_INSTALL_KEY;
 import static com.arcana.updater.util.Constants.REFRESH_INTERVAL_KEY;
+import static com.arcana.updater.util.Constants.SELECTIVE_DOWNLOAD_KEY;
+import static com.arcana.updater.util.Constants.SELECTIVE_FALLBACK;
+import static com.arcana.updater.util.Constants.STREAMING_INSTALL_KEY;
 import static com.arcana.updater.util.Constants.THEME_KEY;
 
 import android.content.SharedPreferences;
 
 import io.reactivex.rxjava3.processors.BehaviorProcessor;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import javax.inject.Inject;
@@ -37,12 +55,18 @@ import javax.inject.Singleton;
 
 @Singleton
 public final class DataStore {
+    private static final String MIRROR_DELIMITER = " ";
+    private static final String PAYLOAD_PROPERTIES_DELIMITER = "\n";
+    // Keys of the full build of an incremental one are prefixed with this
+    private static final String FULL_BUILD_PREFIX = "fullBuild_";
+
     private final SharedPreferences sharedPrefs;
     private final BehaviorProcessor<Integer> globalStatusProcessor;
     private final BehaviorProcessor<DownloadStatus> downloadStatusProcessor;
     private final BehaviorProcessor<String> localUpgradeFileProcessor;
     private BuildInfo buildInfo;
     private DownloadStatus downloadStatus;
+    private DigestCheckpoint digestCheckpoint;
     private String localUpgradeFile;
     private UUID downloadId;
     private int status;
@@ -59,47 +83,45 @@ public final class DataStore {
 
     public BuildInfo getBuildInfo() {
         if (buildInfo == null) {
-            final String md5 = sharedPrefs.getString(BuildInfo.MD5, null);
-            if (md5 != null) {
-                buildInfo = new BuildInfo(
-                    sharedPrefs.getString(BuildInfo.VERSION, null),
-                    sharedPrefs.getLong(BuildInfo.DATE, 0),
-                    sharedPrefs.getString(BuildInfo.URL, null),
-                    sharedPrefs.getString(BuildInfo.FILE_NAME, null),
-                    sharedPrefs.getLong(BuildInfo.FILE_SIZE, 0),
-                    md5
-                );
-            }
+            buildInfo = readBuildInfo("");
         }
         return buildInfo;
     }
 
     public void updateBuildInfo(BuildInfo buildInfo) {
         this.buildInfo = buildInfo;
-        sharedPrefs.edit()
-            .putString(BuildInfo.VERSION, buildInfo.getVersion())
-            .putLong(BuildInfo.DATE, buildInfo.getDate())
-            .putString(BuildInfo.URL, buildInfo.getUrl())
-            .putString(BuildInfo.FILE_NAME, buildInfo.getFileName())
-            .putLong(BuildInfo.FILE_SIZE, buildInfo.getFileSize())
-            .putString(BuildInfo.MD5, buildInfo.getMd5())
-            .commit();
+        final SharedPreferences.Editor editor = sharedPrefs.edit();
+        putBuildInfo(editor, "", buildInfo);
+        final BuildInfo fullBuild = buildInfo.getFullBuild();
+        if (fullBuild != null) {
+            putBuildInfo(editor, FULL_BUILD_PREFIX, fullBuild);
+        } else {
+            removeBuildInfo(editor, FULL_BUILD_PREFIX);
+        }
+        editor.commit();
     }
 
     public void deleteBuildInfo() {
         if (buildInfo != null) {
             buildInfo = null;
         }
+        final SharedPreferences.Editor editor = sharedPrefs.edit();
+        removeBuildInfo(editor, "");
+        removeBuildInfo(editor, FULL_BUILD_PREFIX);
+        editor.commit();
+    }
+
+    // Remember that the incremental package with @param md5 failed to apply
+    public void setFailedIncremental(String md5) {
         sharedPrefs.edit()
-            .remove(BuildInfo.VERSION)
-            .remove(BuildInfo.DATE)
-            .remove(BuildInfo.URL)
-            .remove(BuildInfo.FILE_NAME)
-            .remove(BuildInfo.FILE_SIZE)
-            .remove(BuildInfo.MD5)
+            .putString(FAILED_INCREMENTAL, md5)
             .commit();
     }
 
+    public String getFailedIncremental() {
+        return sharedPrefs.getString(FAILED_INCREMENTAL, null);
+    }
+
     public BehaviorProcessor<DownloadStatus> getDownloadStatusProcessor() {
         return downloadStatusProcessor;
     }
@@ -112,12 +134,18 @@ public final class DataStore {
         return downloadStatus == null ? 0 : downloadStatus.getStatusCode();
     }
 
+    // Download status as last persisted, which unlike the published one survives the process
+    public int getPersistedDownloadStatusCode() {
+        return sharedPrefs.getInt(DOWNLOAD_STATUS, 0);
+    }
+
     public void updateDownloadStatus(int status) {
         sharedPrefs.edit()
             .putInt(DOWNLOAD_STATUS, status)
             .commit();
         if (downloadStatus == null) {
             downloadStatus = new DownloadStatus();
+            downloadStatus.setNetworkUsage(getNetworkUsage());
         }
         if (downloadStatus.getFileSize() == 0) {
             downloadStatus.setFileSize(sharedPrefs.getLong(BuildInfo.FILE_SIZE, 0));
@@ -126,22 +154,103 @@ public final class DataStore {
         downloadStatusProcessor.onNext(downloadStatus);
     }
 
-    public void updateDownloadProgress(long size, int percent) {
-        sharedPrefs.edit()
-            .putLong(DOWNLOADED_SIZE, size)
-            .putInt(DOWNLOADED_PERCENT, percent)
-            .commit();
+    /*
+     * Publish @param size and @param percent along with the current
+     * @param speed in bytes per second, @param eta in seconds and
+     * the bytes transferred per network in @param usage. Only publishes
+     * the progress, use checkpointDownloadProgress to persist it.
+     */
+    public void updateDownloadProgress(long size, int percent, long speed, long eta,
+            NetworkUsage usage) {
         if (downloadStatus != null) {
             downloadStatus.setDownloadedSize(size);
             downloadStatus.setProgress(percent);
+            downloadStatus.setSpeed(speed);
+            downloadStatus.setEta(eta);
+            downloadStatus.setNetworkUsage(usage);
             downloadStatusProcessor.onNext(downloadStatus);
         }
     }
 
+    public List<DownloadSegment> getDownloadSegments() {
+        return DownloadSegment.parse(sharedPrefs.getString(DOWNLOAD_SEGMENTS, null));
+    }
+
+    // ETag or Last-Modified of the content the segments were downloaded from
+    public String getDownloadValidator() {
+        return sharedPrefs.getString(DOWNLOAD_VALIDATOR, null);
+    }
+
+    /*
+     * Persist download progress along with the segments it was computed from,
+     * the @param validator of the content and the network @param usage so far.
+     * Written with a single edit so that they can never disagree, and
+     * asynchronously unless @param sync is true.
+     */
+    public void checkpointDownloadProgress(long size, int percent,
+            String segments, String validator, String usage, boolean sync) {
+        final SharedPreferences.Editor editor = sharedPrefs.edit()
+            .putLong(DOWNLOADED_SIZE, size)
+            .putInt(DOWNLOADED_PERCENT, percent)
+            .putString(DOWNLOAD_SEGMENTS, segments)
+            .putString(DOWNLOAD_VALIDATOR, validator)
+            .putString(NETWORK_USAGE, usage);
+        if (sync) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    public long getCheckpointedDownloadSize() {
+        return sharedPrefs.getLong(DOWNLOADED_SIZE, 0);
+    }
+
+    // Bytes the current download transferred per network as of the last checkpoint
+    public NetworkUsage getNetworkUsage() {
+        return NetworkUsage.parse(sharedPrefs.getString(NETWORK_USAGE, null));
+    }
+
+    // Current download fell back to the whole package since the server doesn't do ranges
+    public void setSelectiveFallback() {
+        sharedPrefs.edit()
+            .putBoolean(SELECTIVE_FALLBACK, true)
+            .commit();
+    }
+
+    public boolean isSelectiveFallback() {
+        return sharedPrefs.getBoolean(SELECTIVE_FALLBACK, false);
+    }
+
+    // Serialized PackageStore index, not part of the download status so that it survives resets
+    public String getPackageIndex() {
+        return sharedPrefs.getString(PACKAGE_INDEX, null);
+    }
+
+    public void updatePackageIndex(String index) {
+        sharedPrefs.edit()
+            .putString(PACKAGE_INDEX, index)
+            .commit();
+    }
+
+    // Digest state is only kept in memory since MessageDigest can't be serialized
+    public DigestCheckpoint getDigestCheckpoint() {
+        return digestCheckpoint;
+    }
+
+    public void updateDigestCheckpoint(DigestCheckpoint checkpoint) {
+        digestCheckpoint = checkpoint;
+    }
+
     public void deleteDownloadStatus() {
+        digestCheckpoint = null;
         sharedPrefs.edit()
             .remove(DOWNLOADED_SIZE)
             .remove(DOWNLOADED_PERCENT)
+            .remove(DOWNLOAD_SEGMENTS)
+            .remove(DOWNLOAD_VALIDATOR)
+            .remove(NETWORK_USAGE)
+            .remove(SELECTIVE_FALLBACK)
             .commit();
         downloadStatus = new DownloadStatus();
         downloadStatusProcessor.onNext(downloadStatus);
@@ -250,4 +359,163 @@ public final class DataStore {
     public int getRefreshInterval() {
         return sharedPrefs.getInt(REFRESH_INTERVAL_KEY, 7);
     }
+
+    public void setDownloadConnections(int connections) {
+        sharedPrefs.edit()
+            .putInt(DOWNLOAD_CONNECTIONS_KEY, connections)
+            .commit();
+    }
+
+    public int getDownloadConnections() {
+        return sharedPrefs.getInt(DOWNLOAD_CONNECTIONS_KEY, 4);
+    }
+
+    // Speed limits are in Mbps, 0 means unlimited
+    public void setDownloadRateLimit(int mbps) {
+        sharedPrefs.edit()
+            .putInt(DOWNLOAD_RATE_LIMIT_KEY, mbps)
+            .commit();
+    }
+
+    public int getDownloadRateLimit() {
+        return sharedPrefs.getInt(DOWNLOAD_RATE_LIMIT_KEY, 0);
+    }
+
+    public void setBackgroundDownloadRateLimit(int mbps) {
+        sharedPrefs.edit()
+            .putInt(BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY, mbps)
+            .commit();
+    }
+
+    public int getBackgroundDownloadRateLimit() {
+        return sharedPrefs.getInt(BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY, 10);
+    }
+
+    // Download new builds in the background when the device is idle
+    public void setAutoDownload(boolean enabled) {
+        sharedPrefs.edit()
+            .putBoolean(AUTO_DOWNLOAD_KEY, enabled)
+            .commit();
+    }
+
+    public boolean isAutoDownloadEnabled() {
+        return sharedPrefs.getBoolean(AUTO_DOWNLOAD_KEY, false);
+    }
+
+    // Install updates by streaming the payload instead of downloading the package first
+    public void setStreamingInstall(boolean enabled) {
+        sharedPrefs.edit()
+            .putBoolean(STREAMING_INSTALL_KEY, enabled)
+            .commit();
+    }
+
+    public boolean isStreamingInstallEnabled() {
+        return sharedPrefs.getBoolean(STREAMING_INSTALL_KEY, false);
+    }
+
+    // Start applying the update as soon as a download is started
+    public void setPipelinedInstall(boolean enabled) {
+        sharedPrefs.edit()
+            .putBoolean(PIPELINED_INSTALL_KEY, enabled)
+            .commit();
+    }
+
+    public boolean isPipelinedInstallEnabled() {
+        return sharedPrefs.getBoolean(PIPELINED_INSTALL_KEY, false);
+    }
+
+    // Download only the parts of the package needed to apply it
+    public void setSelectiveDownload(boolean enabled) {
+        sharedPrefs.edit()
+            .putBoolean(SELECTIVE_DOWNLOAD_KEY, enabled)
+            .commit();
+    }
+
+    public boolean isSelectiveDownloadEnabled() {
+        return sharedPrefs.getBoolean(SELECTIVE_DOWNLOAD_KEY, false);
+    }
+
+    // One of the NetworkMonitor policies
+    public void setNetworkPolicy(int policy) {
+        sharedPrefs.edit()
+            .putInt(NETWORK_POLICY_KEY, policy)
+            .commit();
+    }
+
+    public int getNetworkPolicy() {
+        return sharedPrefs.getInt(NETWORK_POLICY_KEY, NetworkMonitor.POLICY_ANY);
+    }
+
+    // Max cellular data a download may use in MB, for NetworkMonitor.POLICY_CELLULAR_CAP
+    public void setCellularCap(int mb) {
+        sharedPrefs.edit()
+            .putInt(CELLULAR_CAP_KEY, mb)
+            .commit();
+    }
+
+    public int getCellularCap() {
+        return sharedPrefs.getInt(CELLULAR_CAP_KEY, 1000);
+    }
+
+    private BuildInfo readBuildInfo(String prefix) {
+        final String md5 = sharedPrefs.getString(prefix + BuildInfo.MD5, null);
+        if (md5 == null) {
+            return null;
+        }
+        return new BuildInfo(
+            sharedPrefs.getString(prefix + BuildInfo.VERSION, null),
+            sharedPrefs.getLong(prefix + BuildInfo.DATE, 0),
+            sharedPrefs.getString(prefix + BuildInfo.URL, null),
+            sharedPrefs.getString(prefix + BuildInfo.FILE_NAME, null),
+            sharedPrefs.getLong(prefix + BuildInfo.FILE_SIZE, 0),
+            md5,
+            parseMirrors(sharedPrefs.getString(prefix + BuildInfo.MIRRORS, null)),
+            sharedPrefs.getLong(prefix + BuildInfo.PAYLOAD_OFFSET, -1),
+            sharedPrefs.getLong(prefix + BuildInfo.PAYLOAD_SIZE, -1),
+            parseList(sharedPrefs.getString(prefix + BuildInfo.PAYLOAD_PROPERTIES, null),
+                PAYLOAD_PROPERTIES_DELIMITER),
+            // Only the top level build can be an incremental one
+            prefix.isEmpty() ? readBuildInfo(FULL_BUILD_PREFIX) : null
+        );
+    }
+
+    private static void putBuildInfo(SharedPreferences.Editor editor,
+            String prefix, BuildInfo buildInfo) {
+        editor.putString(prefix + BuildInfo.VERSION, buildInfo.getVersion())
+            .putLong(prefix + BuildInfo.DATE, buildInfo.getDate())
+            .putString(prefix + BuildInfo.URL, buildInfo.getUrl())
+            .putString(prefix + BuildInfo.FILE_NAME, buildInfo.getFileName())
+            .putLong(prefix + BuildInfo.FILE_SIZE, buildInfo.getFileSize())
+            .putString(prefix + BuildInfo.MD5, buildInfo.getMd5())
+            .putString(prefix + BuildInfo.MIRRORS,
+                String.join(MIRROR_DELIMITER, buildInfo.getMirrors()))
+            .putLong(prefix + BuildInfo.PAYLOAD_OFFSET, buildInfo.getPayloadOffset())
+            .putLong(prefix + BuildInfo.PAYLOAD_SIZE, buildInfo.getPayloadSize())
+            .putString(prefix + BuildInfo.PAYLOAD_PROPERTIES,
+                String.join(PAYLOAD_PROPERTIES_DELIMITER, buildInfo.getPayloadProperties()));
+    }
+
+    private static void removeBuildInfo(SharedPreferences.Editor editor, String prefix) {
+        editor.remove(prefix + BuildInfo.VERSION)
+            .remove(prefix + BuildInfo.DATE)
+            .remove(prefix + BuildInfo.URL)
+            .remove(prefix + BuildInfo.FILE_NAME)
+            .remove(prefix + BuildInfo.FILE_SIZE)
+            .remove(prefix + BuildInfo.MD5)
+            .remove(prefix + BuildInfo.MIRRORS)
+            .remove(prefix + BuildInfo.PAYLOAD_OFFSET)
+            .remove(prefix + BuildInfo.PAYLOAD_SIZE)
+            .remove(prefix + BuildInfo.PAYLOAD_PROPERTIES);
+    }
+
+    private static List<String> parseMirrors(String mirrors) {
+        return parseList(mirrors, MIRROR_DELIMITER);
+    }
+
+    private static List<String> parseList(String list, String delimiter) {
+        if (list == null || list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(list.split(delimiter));
+    }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import java.security.MessageDigest
+
+/*
+ * State of the md5 digest of a download whose expected
+ * hash is @param md5, covering the first @param offset bytes.
+ */
+data class DigestCheckpoint(
+    val md5: String,
+    val offset: Long,
+    val digest: MessageDigest,
+)
@@ -16,8 +16,9 @@
 
 package com.arcana.updater.model.data;
 
-import static androidx.work.BackoffPolicy.LINEAR;
+import static androidx.work.BackoffPolicy.EXPONENTIAL;
 import static androidx.work.NetworkType.CONNECTED;
+import static androidx.work.NetworkType.UNMETERED;
 import static androidx.work.OneTimeWorkRequest.MIN_BACKOFF_MILLIS;
 import static com.arcana.updater.util.Constants.DOWNLOADING;
 import static com.arcana.updater.util.Constants.INDETERMINATE;
@@ -25,6 +26,8 @@ import static com.arcana.updater.util.Constants.PAUSED;
 import static com.arcana.updater.util.Constants.CANCELLED;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
 import androidx.work.Constraints;
@@ -36,51 +39,109 @@ import androidx.work.WorkManager;
 import com.arcana.updater.model.data.BuildInfo;
 import com.arcana.updater.model.data.DataStore;
 import com.arcana.updater.workers.DownloadWorker;
+import com.arcana.updater.workers.PauseController;
 
 import io.reactivex.rxjava3.subjects.PublishSubject;
 
+import java.io.IOException;
 import java.util.UUID;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
 @Singleton
 public class DownloadManager {
+    private static final String TAG = "DownloadManager";
 
-    private final Constraints constraints;
+    private final Constraints constraints, unmeteredConstraints, backgroundConstraints;
     private final WorkManager workManager;
     private final DataStore dataStore;
+    private final OkHttpClient client;
+    private final PauseController pauseController;
     private final PublishSubject<UUID> uuidSubject;
     private UUID id;
 
     @Inject
-    public DownloadManager(WorkManager workManager, DataStore dataStore) {
+    public DownloadManager(WorkManager workManager, DataStore dataStore,
+            OkHttpClient client, PauseController pauseController) {
         this.workManager = workManager;
         this.dataStore = dataStore;
+        this.client = client;
+        this.pauseController = pauseController;
         constraints = new Constraints.Builder()
             .setRequiredNetworkType(CONNECTED)
             .setRequiresStorageNotLow(true)
             .build();
+        unmeteredConstraints = new Constraints.Builder()
+            .setRequiredNetworkType(UNMETERED)
+            .setRequiresStorageNotLow(true)
+            .build();
+        backgroundConstraints = new Constraints.Builder()
+            .setRequiredNetworkType(UNMETERED)
+            .setRequiresStorageNotLow(true)
+            .setRequiresCharging(true)
+            .setRequiresDeviceIdle(true)
+            .build();
         uuidSubject = PublishSubject.create();
     }
 
+    /*
+     * Start downloading the current build. The worker uses a verified
+     * copy of it instead if there is one on the device already.
+     */
     @WorkerThread
     public void start() {
         dataStore.deleteDownloadStatus();
-        fetchAndEnqueueDownload();
+        fetchAndEnqueueDownload(false, false);
     }
 
+    /*
+     * Start downloading the current build without the user asking for it.
+     * The download waits until the device is idle, charging and on an
+     * unmetered network, and is limited to the background speed.
+     * If the user pauses and resumes it, it continues as a normal download.
+     */
+    @WorkerThread
+    public void startInBackground() {
+        dataStore.deleteDownloadStatus();
+        fetchAndEnqueueDownload(true, false);
+        // The app may be long gone before anyone wants to pause it
+        dataStore.updateDownloadId(id);
+    }
+
+    /*
+     * Pausing keeps the worker running with its connections parked, if it
+     * runs in this process, so that resuming soon after is near instant.
+     * Otherwise, or once the worker gave up waiting, the work is cancelled
+     * and resuming enqueues a new request.
+     */
     @WorkerThread
     public void pauseOrResume() {
         if (id == null) {
             id = dataStore.getCurrentDownloadId();
         }
-        if (id != null) {
+        if (isPaused() && pauseController.resume()) {
+            dataStore.updateDownloadStatus(DOWNLOADING);
+            return;
+        }
+        if (id != null && !isPaused()) {
+            if (pauseController.pause()) {
+                dataStore.updateDownloadStatus(PAUSED);
+                return;
+            }
             workManager.cancelWorkById(id);
             id = null;
             dataStore.updateDownloadStatus(PAUSED);
         } else {
-            fetchAndEnqueueDownload();
+            if (id != null) {
+                // Worker that gave up its paused session, may still be winding down
+                workManager.cancelWorkById(id);
+            }
+            fetchAndEnqueueDownload(false, true);
         }
         dataStore.updateDownloadId(id);
     }
@@ -106,34 +167,83 @@ public class DownloadManager {
         return dataStore.getDownloadStatusCode() == PAUSED;
     }
 
+    /*
+     * Connect to the host of @param url ahead of the download so that DNS,
+     * TCP and TLS setup are already done when it starts. The connection
+     * (and any redirect target's) stays in the shared pool until it idles out.
+     */
+    @WorkerThread
+    public void prewarm(String url) {
+        final Request request;
+        try {
+            request = new Request.Builder().url(url).head().build();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Malformed url " + url, e);
+            return;
+        }
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                Log.w(TAG, "Prewarming " + url + " returned " + response.code());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "IOException when prewarming " + url, e);
+        }
+    }
+
     public PublishSubject<UUID> getUUIDSubject() {
         return uuidSubject;
     }
 
-    private OneTimeWorkRequest buildRequest(BuildInfo buildInfo) {
-        return new OneTimeWorkRequest.Builder(DownloadWorker.class)
-            .setConstraints(constraints)
+    private OneTimeWorkRequest buildRequest(BuildInfo buildInfo, boolean background) {
+        final OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(DownloadWorker.class)
+            .setConstraints(getConstraints(background))
             .setInputData(new Data.Builder()
                 .putString(BuildInfo.URL, buildInfo.getUrl())
                 .putString(BuildInfo.FILE_NAME, buildInfo.getFileName())
                 .putString(BuildInfo.MD5, buildInfo.getMd5())
                 .putLong(BuildInfo.FILE_SIZE, buildInfo.getFileSize())
-                .build())
-            .setBackoffCriteria(LINEAR, MIN_BACKOFF_MILLIS, MILLISECONDS)
-            .build();
+                .putStringArray(BuildInfo.MIRRORS, buildInfo.getMirrors().toArray(new String[0]))
+                .putInt(DownloadWorker.CONNECTIONS, dataStore.getDownloadConnections())
+                .putBoolean(DownloadWorker.BACKGROUND, background)
+                .putBoolean(DownloadWorker.PIPELINED,
+                    !background && dataStore.isPipelinedInstallEnabled())
+                .putBoolean(DownloadWorker.SELECTIVE, dataStore.isSelectiveDownloadEnabled())
+                .build());
+        if (!background) {
+            // Idle mode jobs can't have a backoff, they simply run again on the next idle window
+            builder.setBackoffCriteria(EXPONENTIAL, MIN_BACKOFF_MILLIS, MILLISECONDS);
+        }
+        return builder.build();
     }
 
-    private void fetchAndEnqueueDownload() {
+    /*
+     * Constraints to start a download with. Network changes after that
+     * are handled by DownloadWorker itself, which waits for an allowed
+     * network and resumes right away instead of going through a retry.
+     */
+    private Constraints getConstraints(boolean background) {
+        if (background) {
+            return backgroundConstraints;
+        }
+        return dataStore.getNetworkPolicy() == NetworkMonitor.POLICY_UNMETERED ?
+            unmeteredConstraints : constraints;
+    }
+
+    private void fetchAndEnqueueDownload(boolean background, boolean resume) {
         final BuildInfo buildInfo = dataStore.getBuildInfo();
         if (buildInfo.getFileName() == null) {
             return;
         }
-        final OneTimeWorkRequest downloadRequest = buildRequest(buildInfo);
+        final OneTimeWorkRequest downloadRequest = buildRequest(buildInfo, background);
         id = downloadRequest.getId();
-        workManager.enqueue(downloadRequest);
-        uuidSubject.onNext(id);
-        if (dataStore.getDownloadStatusCode() == 0) {
+        // Set before enqueuing, the worker quits right away while the download is persisted as paused
+        if (resume || dataStore.getDownloadStatusCode() == 0) {
             dataStore.updateDownloadStatus(INDETERMINATE);
         }
+        if (!background) {
+            pauseController.onEnqueued(resume);
+        }
+        workManager.enqueue(downloadRequest);
+        uuidSubject.onNext(id);
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+/*
+ * A byte range [start, end) of the download target. offset is the
+ * position up to which data has been written to the file, so
+ * a segment is complete once offset reaches end.
+ */
+data class DownloadSegment(
+    val start: Long,
+    val end: Long,
+    @Volatile var offset: Long = start,
+) {
+    val downloadedSize: Long
+        get() = offset - start
+
+    val remaining: Long
+        get() = end - offset
+
+    fun isComplete() = offset >= end
+
+    companion object {
+        private const val SEGMENT_DELIMITER = ","
+        private const val FIELD_DELIMITER = ":"
+
+        /*
+         * Split a file of @param fileSize bytes into at most @param count
+         * segments of (almost) equal size. Segment boundaries are
+         * multiples of @param alignment.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun split(fileSize: Long, count: Int, alignment: Long = 1): List<DownloadSegment> {
+            val segmentCount = if (fileSize < count) 1 else maxOf(count, 1)
+            val segmentSize = ((fileSize / segmentCount + alignment - 1) / alignment)
+                .coerceAtLeast(1) * alignment
+            val segments = mutableListOf<DownloadSegment>()
+            var start = 0L
+            do {
+                val end = minOf(start + segmentSize, fileSize)
+                segments.add(DownloadSegment(start, end))
+                start = end
+            } while (start < fileSize)
+            return segments
+        }
+
+        /*
+         * Segments for a file of @param fileSize bytes of which only the
+         * chunks (of @param chunkSize bytes) in @param chunks are missing.
+         */
+        @JvmStatic
+        fun forMissingChunks(fileSize: Long, chunkSize: Long, chunks: List<Int>): List<DownloadSegment> {
+            val segments = mutableListOf<DownloadSegment>()
+            var start = 0L
+            chunks.sorted().forEach { chunk ->
+                val chunkStart = chunk * chunkSize
+                val chunkEnd = minOf(chunkStart + chunkSize, fileSize)
+                if (chunkStart > start) {
+                    // Everything in between is already there
+                    segments.add(DownloadSegment(start, chunkStart, chunkStart))
+                }
+                val last = segments.lastOrNull()
+                if (last != null && last.end == chunkStart && last.offset == last.start) {
+                    // Merge adjacent missing chunks
+                    segments[segments.size - 1] = DownloadSegment(last.start, chunkEnd)
+                } else {
+                    segments.add(DownloadSegment(chunkStart, chunkEnd))
+                }
+                start = chunkEnd
+            }
+            if (start < fileSize) {
+                segments.add(DownloadSegment(start, fileSize, fileSize))
+            }
+            return segments
+        }
+
+        /*
+         * Segments for a file of @param fileSize bytes of which only
+         * @param ranges are needed, everything else is marked as written.
+         * Ranges are widened to multiples of @param alignment and split
+         * into segments of at most @param segmentSize bytes.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun forRanges(fileSize: Long, ranges: List<LongRange>, segmentSize: Long,
+                alignment: Long = 1): List<DownloadSegment> {
+            val size = ((segmentSize + alignment - 1) / alignment).coerceAtLeast(1) * alignment
+            val segments = mutableListOf<DownloadSegment>()
+            var start = 0L
+            ranges.filter { !it.isEmpty() }
+                .map { (it.first / alignment) * alignment to
+                    minOf((it.last / alignment + 1) * alignment, fileSize) }
+                .sortedBy { it.first }
+                .forEach { (rangeStart, rangeEnd) ->
+                    if (rangeEnd <= start) return@forEach // Overlaps the ones before
+                    if (rangeStart > start) {
+                        segments.add(DownloadSegment(start, rangeStart, rangeStart))
+                        start = rangeStart
+                    }
+                    while (start < rangeEnd) {
+                        val end = minOf(start + size, rangeEnd)
+                        segments.add(DownloadSegment(start, end))
+                        start = end
+                    }
+                }
+            if (start < fileSize) {
+                segments.add(DownloadSegment(start, fileSize, fileSize))
+            }
+            return segments
+        }
+
+        // Total number of bytes @param segments still have to fetch
+        @JvmStatic
+        fun getRemainingSize(segments: List<DownloadSegment>): Long =
+            segments.fold(0L) { sum, segment -> sum + segment.remaining }
+
+        // Copy of @param segments whose offsets won't change anymore
+        @JvmStatic
+        fun snapshot(segments: List<DownloadSegment>): List<DownloadSegment> =
+            segments.map { it.copy() }
+
+        // Total number of bytes written across all @param segments
+        @JvmStatic
+        fun getDownloadedSize(segments: List<DownloadSegment>): Long =
+            segments.fold(0L) { sum, segment -> sum + segment.downloadedSize }
+
+        /*
+         * Number of bytes from the start of the file that are written
+         * without a gap, @param segments must be in order.
+         */
+        @JvmStatic
+        fun getContiguousSize(segments: List<DownloadSegment>): Long {
+            var size = 0L
+            for (segment in segments) {
+                size += segment.downloadedSize
+                if (!segment.isComplete()) break
+            }
+            return size
+        }
+
+        /*
+         * Returns true iff @param segments are contiguous, sane
+         * and together span exactly [0, fileSize)
+         */
+        @JvmStatic
+        fun covers(segments: List<DownloadSegment>, fileSize: Long): Boolean {
+            var expectedStart = 0L
+            segments.forEach {
+                if (it.start != expectedStart || it.end < it.start ||
+                        it.offset < it.start || it.offset > it.end) {
+                    return false
+                }
+                expectedStart = it.end
+            }
+            return expectedStart == fileSize
+        }
+
+        // Serialize @param segments as start:end:offset,start:end:offset...
+        @JvmStatic
+        fun serialize(segments: List<DownloadSegment>): String =
+            segments.joinToString(SEGMENT_DELIMITER) {
+                "${it.start}$FIELD_DELIMITER${it.end}$FIELD_DELIMITER${it.offset}"
+            }
+
+        // Parse a string created with serialize, returns null if malformed
+        @JvmStatic
+        fun parse(string: String?): List<DownloadSegment>? {
+            if (string.isNullOrEmpty()) return null
+            return try {
+                string.split(SEGMENT_DELIMITER).map { segment ->
+                    segment.split(FIELD_DELIMITER).let {
+                        DownloadSegment(it[0].toLong(), it[1].toLong(), it[2].toLong())
+                    }
+                }
+            } catch (e: RuntimeException) {
+                null
+            }
+        }
+    }
+}
@@ -21,4 +21,7 @@ data class DownloadStatus(
     var progress: Int = 0,
     var downloadedSize: Long = 0,
     var fileSize: Long = 0,
+    var speed: Long = 0, // Bytes per second
+    var eta: Long = -1, // Seconds, -1 if unknown
+    var networkUsage: NetworkUsage = NetworkUsage(),
 )
@@ -16,13 +16,17 @@
 
 package com.arcana.updater.model.data
 
+import android.os.Build
 import android.util.Log
 
 import androidx.annotation.WorkerThread
 
+import com.arcana.updater.model.retrofit.data.ChunkManifest
 import com.arcana.updater.model.retrofit.data.Content
+import com.arcana.updater.model.retrofit.data.IncrementalContent
 import com.arcana.updater.model.retrofit.data.OTAJsonContent
 import com.arcana.updater.model.retrofit.GithubApiService
+import com.arcana.updater.util.Utils
 
 import java.io.IOException
 import java.net.URL
@@ -44,7 +48,7 @@ import retrofit2.converter.scalars.ScalarsConverterFactory
 import retrofit2.Retrofit
 
 @Singleton
-class GithubApiHelper @Inject constructor() {
+class GithubApiHelper @Inject constructor(client: OkHttpClient) {
 
     private val loggingInterceptor = HttpLoggingInterceptor()
     private val okHttpClient: OkHttpClient
@@ -52,10 +56,12 @@ class GithubApiHelper @Inject constructor() {
     private val githubApiService: GithubApiService
 
     private var fetchedBuildDate: Long = 0
+    private var fetchedChunkManifest: String? = null
 
     init {
         loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BODY)
-        okHttpClient = OkHttpClient.Builder().apply {
+        // Derived client shares the connection pool with the downloads
+        okHttpClient = client.newBuilder().apply {
             if (DEBUG) addInterceptor(loggingInterceptor)
         }.build()
         retrofit = Retrofit.Builder()
@@ -68,11 +74,15 @@ class GithubApiHelper @Inject constructor() {
     }
 
     /*
-     * Fetch ota.json file from github for the given
-     * @param device. Returns a BuildInfo object on success
+     * Fetch ota.json file from github for the given @param device.
+     * Returns a BuildInfo object on success, for the smallest package
+     * that applies to the running build. That is an incremental one if
+     * there is one for this build, other than @param excludedIncremental
+     * (md5 of an incremental that failed before), else the full one.
      */
     @WorkerThread
-    fun getBuildInfo(device: String): BuildInfo? {
+    @JvmOverloads
+    fun getBuildInfo(device: String, excludedIncremental: String? = null): BuildInfo? {
         logD("getBuildInfo, device = $device")
         val urlString = getUrlForDevice(device)
         logD("getBuildInfo, url = $urlString")
@@ -84,13 +94,43 @@ class GithubApiHelper @Inject constructor() {
             logD("otaJsonContent = $otaJsonContent")
             return otaJsonContent?.let {
                 fetchedBuildDate = it.date
-                return BuildInfo(
+                val fullBuild = BuildInfo(
                     it.version,
                     it.date,
                     it.url,
                     it.fileName,
                     it.fileSize,
                     it.md5,
+                    it.mirrors ?: emptyList(),
+                    it.payloadOffset,
+                    it.payloadSize,
+                    it.payloadProperties ?: emptyList(),
+                )
+                val incremental = it.incrementals
+                    ?.filter { candidate ->
+                        candidate.md5 != excludedIncremental &&
+                            candidate.fileSize < it.fileSize &&
+                            appliesToRunningBuild(candidate)
+                    }
+                    ?.minByOrNull { candidate -> candidate.fileSize }
+                if (incremental == null) {
+                    fetchedChunkManifest = it.chunkManifest
+                    return fullBuild
+                }
+                logD("getBuildInfo, picked incremental ${incremental.fileName}")
+                fetchedChunkManifest = incremental.chunkManifest
+                return BuildInfo(
+                    it.version,
+                    it.date,
+                    incremental.url,
+                    incremental.fileName,
+                    incremental.fileSize,
+                    incremental.md5,
+                    incremental.mirrors ?: emptyList(),
+                    incremental.payloadOffset,
+                    incremental.payloadSize,
+                    incremental.payloadProperties ?: emptyList(),
+                    fullBuild,
                 )
             }
         } catch (e: Exception) {
@@ -99,6 +139,55 @@ class GithubApiHelper @Inject constructor() {
         return null
     }
 
+    /*
+     * Fetch the current urls of the package with @param md5 and @param size
+     * for the given @param device, for when its signed urls expired. Unlike
+     * getBuildInfo this leaves the build date and chunk manifest of the
+     * last getBuildInfo alone. Returns the url followed by the mirrors,
+     * or null if the package isn't published anymore.
+     * Throws IOException if ota.json couldn't be fetched.
+     */
+    @WorkerThread
+    @Throws(IOException::class)
+    fun getPackageUrls(device: String, md5: String, size: Long): List<String>? {
+        val otaJsonContent: OTAJsonContent = try {
+            githubApiService
+                .getOTAJsonContent(getUrlForDevice(device))
+                .execute()
+                .body()
+        } catch (e: RuntimeException) {
+            throw IOException("Exception while parsing ota info", e)
+        } ?: throw IOException("No ota info for $device")
+        if (otaJsonContent.md5 == md5 && otaJsonContent.fileSize == size) {
+            return listOf(otaJsonContent.url) + (otaJsonContent.mirrors ?: emptyList())
+        }
+        return otaJsonContent.incrementals
+            ?.find { it.md5 == md5 && it.fileSize == size }
+            ?.let { listOf(it.url) + (it.mirrors ?: emptyList()) }
+    }
+
+    /*
+     * Fetch the chunk manifest published for the last ota.json
+     * fetched with getBuildInfo for the given @param device.
+     * Returns null if there is none or it couldn't be fetched.
+     */
+    @WorkerThread
+    fun getChunkManifest(device: String): ChunkManifest? {
+        val manifest = fetchedChunkManifest ?: return null
+        val urlString = if (manifest.startsWith("https://")) manifest
+            else "$RAW_CONTENT_BASE_URL/$device/$manifest"
+        logD("getChunkManifest, url = $urlString")
+        try {
+            return githubApiService
+                .getChunkManifest(urlString)
+                .execute()
+                .body()
+        } catch (e: Exception) {
+            Log.e(TAG, "Exception while parsing chunk manifest", e)
+        }
+        return null
+    }
+
     /*
      * Fetch all the changelog_YYYY_MM_DD files for the given
      * @param device, filtered based on @param dateLowerBound (in millis).
@@ -173,6 +262,11 @@ class GithubApiHelper @Inject constructor() {
 
         private fun getUrlForDevice(device: String) = "$RAW_CONTENT_BASE_URL/$device/$OTA_JSON_FILE_NAME"
 
+        // Whether @param incremental was generated from the build that is running
+        private fun appliesToRunningBuild(incremental: IncrementalContent): Boolean =
+            incremental.sourceFingerprint?.let { it == Build.FINGERPRINT }
+                ?: (incremental.sourceDate == Utils.getBuildDate())
+
         private fun getDateFromChangelogFileName(name: String): Date? =
             try {
                 CHANGELONG_FILE_DATE_FORMAT.parse(
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.util.Log
+
+import com.arcana.updater.util.Constants.MB
+
+import java.io.PrintWriter
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val TAG: String = "NetworkMonitor"
+private const val DEBUG: Boolean = false
+
+/**
+ * Tracks the default network, so that downloads can follow the
+ * network policy set by the user and notice handoffs between
+ * networks (like Wi-Fi to cellular) as soon as they happen.
+ */
+@Singleton
+class NetworkMonitor @Inject constructor(
+    context: Context,
+    private val dataStore: DataStore,
+) {
+    enum class Transport { WIFI, CELLULAR, OTHER }
+
+    private var network: Network? = null
+    private var capabilities: NetworkCapabilities? = null
+
+    // Incremented whenever the default network, its transport or its metered state changes
+    @Volatile
+    var changeCount = 0
+        private set
+
+    init {
+        val connectivityManager = context.getSystemService(ConnectivityManager::class.java)
+        logD("registering NetworkCallback")
+        connectivityManager.registerDefaultNetworkCallback(object: ConnectivityManager.NetworkCallback() {
+            override fun onCapabilitiesChanged(network: Network, caps: NetworkCapabilities) {
+                onNetworkChanged(network, caps)
+            }
+
+            override fun onLost(network: Network) {
+                onNetworkChanged(null, null)
+            }
+        })
+    }
+
+    // Transport of the default network, null if there is none
+    @Synchronized
+    fun getTransport(): Transport? = capabilities?.let { getTransport(it) }
+
+    @Synchronized
+    fun isMetered() = capabilities?.hasCapability(
+        NetworkCapabilities.NET_CAPABILITY_NOT_METERED) == false
+
+    /*
+     * Whether a download may transfer data over the default network
+     * under the current policy, given its @param usage so far
+     */
+    @Synchronized
+    fun isTransferAllowed(usage: NetworkUsage): Boolean {
+        val caps = capabilities ?: return false
+        return when (dataStore.getNetworkPolicy()) {
+            POLICY_UNMETERED -> caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+            POLICY_CELLULAR_CAP -> getTransport(caps) != Transport.CELLULAR ||
+                usage.cellular < dataStore.getCellularCap().toLong() * MB
+            else -> true
+        }
+    }
+
+    // Report the policy, the default network and the usage of the current download for dumpsys
+    @Synchronized
+    fun dump(prefix: String, writer: PrintWriter) {
+        val usage = dataStore.getDownloadStatus()?.networkUsage ?: dataStore.getNetworkUsage()
+        writer.println("${prefix}NetworkMonitor:")
+        writer.println("$prefix  policy=${dataStore.getNetworkPolicy()}" +
+            " cellularCap=${dataStore.getCellularCap()}MB")
+        writer.println("$prefix  network=$network transport=${getTransport()}" +
+            " metered=${isMetered()} changes=$changeCount")
+        writer.println("$prefix  usage: wifi=${usage.wifi} cellular=${usage.cellular}" +
+            " other=${usage.other} total=${usage.total}")
+        writer.println("$prefix  transferAllowed=${isTransferAllowed(usage)}")
+    }
+
+    @Synchronized
+    private fun onNetworkChanged(network: Network?, caps: NetworkCapabilities?) {
+        val changed = network != this.network ||
+            caps?.let { getTransport(it) } != capabilities?.let { getTransport(it) } ||
+            caps?.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) !=
+                capabilities?.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+        this.network = network
+        capabilities = caps
+        if (changed) {
+            logD("default network changed to $network, caps = $caps")
+            changeCount++
+        }
+    }
+
+    private fun getTransport(caps: NetworkCapabilities) = when {
+        caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) -> Transport.WIFI
+        caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) -> Transport.CELLULAR
+        else -> Transport.OTHER
+    }
+
+    companion object {
+        // Network policies, in the order of R.array.network_policies
+        const val POLICY_ANY = 0
+        const val POLICY_UNMETERED = 1
+        const val POLICY_CELLULAR_CAP = 2
+
+        fun logD(msg: String) {
+            if (DEBUG) Log.d(TAG, msg)
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+// Bytes a download transferred over each kind of network
+data class NetworkUsage(
+    val wifi: Long = 0,
+    val cellular: Long = 0,
+    val other: Long = 0, // Ethernet, vpn or unknown
+) {
+    val total: Long
+        get() = wifi + cellular + other
+
+    // Usage with @param bytes more transferred over @param transport
+    fun plus(transport: NetworkMonitor.Transport, bytes: Long) = when (transport) {
+        NetworkMonitor.Transport.WIFI -> copy(wifi = wifi + bytes)
+        NetworkMonitor.Transport.CELLULAR -> copy(cellular = cellular + bytes)
+        NetworkMonitor.Transport.OTHER -> copy(other = other + bytes)
+    }
+
+    fun serialize() = "$wifi$DELIMITER$cellular$DELIMITER$other"
+
+    companion object {
+        private const val DELIMITER = ","
+
+        // Inverse of serialize, empty usage if @param serialized is null or malformed
+        @JvmStatic
+        fun parse(serialized: String?): NetworkUsage {
+            val values = serialized?.split(DELIMITER)?.mapNotNull { it.toLongOrNull() }
+            if (values == null || values.size != 3) {
+                return NetworkUsage()
+            }
+            return NetworkUsage(values[0], values[1], values[2])
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.io.File
 import java.io.FileOutputStream
 import java.io.InputStream
 import java.io.IOException
+import java.util.concurrent.Executor
 
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -45,19 +46,57 @@ class OTAFileManager @Inject constructor() {
 
     fun getOTAFileUri() = Uri.fromFile(otaFile)
 
-    fun copyToOTAPackageDir(inStream: InputStream): Boolean {
+    fun getOTAFile() = otaFile
+
+    fun hasOTAFile() = otaFile.isFile()
+
+    // File in the ota dir that a download of @param fileName is written to
+    fun getPartialFile(fileName: String) = File(otaPackageDir, "$fileName$PARTIAL_SUFFIX")
+
+    /*
+     * Move a finished download in place of the ota package. Since
+     * the partial file lives in the ota dir already this is just a rename.
+     */
+    fun finalizeDownload(partialFile: File): Boolean {
+        if (!cleanup(partialFile)) {
+            return false
+        }
+        if (!partialFile.renameTo(otaFile)) {
+            Log.e(TAG, "renaming ${partialFile.absolutePath} to ${otaFile.absolutePath} failed")
+            return false
+        }
+        return setPermissions()
+    }
+
+    // Delete everything in the ota dir except the download in @param partialFile
+    fun deleteStaleFiles(partialFile: File) = cleanup(partialFile)
+
+    // Delete the ota package along with any partial download
+    fun deleteDownloads() = cleanup()
+
+    // Delete all partially downloaded files
+    fun deletePartialFiles() {
+        otaPackageDir.listFiles()?.filter { it.name.endsWith(PARTIAL_SUFFIX) }?.forEach {
+            if (!it.delete()) {
+                Log.e(TAG, "deleting ${it.absolutePath} failed")
+            }
+        }
+    }
+
+    /*
+     * Copy @param inStream to the ota package, @param listener
+     * is called with the number of bytes copied so far.
+     */
+    @JvmOverloads
+    fun copyToOTAPackageDir(inStream: InputStream,
+            listener: FileUtils.ProgressListener? = null): Boolean {
         if (!cleanup()) {
             return false
         }
         try {
             FileOutputStream(otaFile).use {
-                FileUtils.copy(inStream, it)
-                val errno: Int = FileUtils.setPermissions(otaFile, S_IRWXU or S_IRWXG, -1, -1)
-                if (errno == 0) {
-                    return true
-                } else {
-                    Log.e(TAG, "setPermissions for ${otaFile.absolutePath} failed with errno $errno")
-                }
+                FileUtils.copy(inStream, it, null, Executor { command -> command.run() }, listener)
+                return setPermissions()
             }
         } catch(ex: IOException) {
             Log.e(TAG, "IOException when copying to ota dir, ${ex.message}")
@@ -65,6 +104,21 @@ class OTAFileManager @Inject constructor() {
         return false
     }
 
+    /*
+     * Write payload @param metadata to a file update_engine can read,
+     * returns the file or null if writing failed
+     */
+    fun writePayloadMetadata(metadata: ByteArray): File? {
+        val file = File(otaPackageDir, PAYLOAD_METADATA_FILE)
+        try {
+            FileOutputStream(file).use { it.write(metadata) }
+        } catch (ex: IOException) {
+            Log.e(TAG, "IOException when writing ${file.absolutePath}, ${ex.message}")
+            return null
+        }
+        return if (setPermissions(file)) file else null
+    }
+
     private fun checkOTADir() {
         if (!otaPackageDir.isDirectory()) {
             throw RuntimeException("ota package dir ${otaPackageDir.absolutePath} does not exist")
@@ -75,9 +129,18 @@ class OTAFileManager @Inject constructor() {
         }
     }
 
-    private fun cleanup(): Boolean {
+    private fun setPermissions(file: File = otaFile): Boolean {
+        val errno: Int = FileUtils.setPermissions(file, S_IRWXU or S_IRWXG, -1, -1)
+        if (errno != 0) {
+            Log.e(TAG, "setPermissions for ${file.absolutePath} failed with errno $errno")
+        }
+        return errno == 0
+    }
+
+    // Delete everything in the ota dir except @param keep
+    private fun cleanup(keep: File? = null): Boolean {
         otaPackageDir.listFiles()?.forEach {
-            if (!it.delete()) {
+            if (it != keep && !it.delete()) {
                 Log.e(TAG, "deleting ${it.absolutePath} failed")
                 return false
             }
@@ -89,5 +152,7 @@ class OTAFileManager @Inject constructor() {
         private const val TAG = "OTAFileManager"
         private const val OTA_DIR = "kosp_ota"
         private const val UPDATE_FILE = "update.zip"
+        private const val PARTIAL_SUFFIX = ".part"
+        private const val PAYLOAD_METADATA_FILE = "payload_metadata.bin"
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import android.util.Log
+
+import androidx.annotation.WorkerThread
+
+import com.arcana.updater.util.Constants.MB
+
+import java.io.File
+import java.io.PrintWriter
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/*
+ * Index of verified packages on the device, addressed by their md5 and
+ * size, so that downloading a build that is already here (like after
+ * a reset or a new check for updates) just reuses the local copy.
+ * The indexed files are the ota package and its copies in Downloads,
+ * the least recently used copies are deleted once they exceed SPACE_BUDGET.
+ * The index is kept apart from the download state and survives resets.
+ */
+@Singleton
+class PackageStore @Inject constructor(
+    private val dataStore: DataStore,
+    private val ofm: OTAFileManager,
+) {
+    // A verified copy of a package, which is stale once the file changed
+    data class Entry(
+        val md5: String,
+        val size: Long,
+        val path: String,
+        val lastModified: Long,
+        val lastUsed: Long,
+    ) {
+        val file: File
+            get() = File(path)
+
+        fun isValid() = file.let { it.isFile() && it.length() == size &&
+            it.lastModified() == lastModified }
+
+        fun serialize() = listOf(md5, size, lastModified, lastUsed, path)
+            .joinToString(FIELD_DELIMITER)
+
+        companion object {
+            // Inverse of serialize, null if @param serialized is malformed
+            fun parse(serialized: String): Entry? {
+                val fields = serialized.split(FIELD_DELIMITER, limit = 5)
+                if (fields.size != 5) {
+                    return null
+                }
+                return Entry(fields[0], fields[1].toLongOrNull() ?: return null, fields[4],
+                    fields[2].toLongOrNull() ?: return null, fields[3].toLongOrNull() ?: return null)
+            }
+        }
+    }
+
+    /*
+     * Record @param file as a copy of the package with @param md5 and @param size.
+     * Call only after the file was verified against the md5.
+     */
+    @WorkerThread
+    @Synchronized
+    fun put(md5: String, size: Long, file: File) {
+        val entries = readIndex().filter { it.path != file.absolutePath }.toMutableList()
+        entries.add(Entry(md5, size, file.absolutePath, file.lastModified(),
+            System.currentTimeMillis()))
+        evict(entries, file)
+        writeIndex(entries)
+    }
+
+    /*
+     * Copy of the package with @param md5 and @param size to restore the
+     * ota package from, preferring the ota package itself and otherwise
+     * the most recently used one. Returns null if there is no such copy.
+     * Size and mtime only tell that the file is unchanged, so the caller
+     * checks the md5 again before using it.
+     */
+    @WorkerThread
+    @Synchronized
+    fun find(md5: String, size: Long): Entry? {
+        val otaPath = ofm.getOTAFile().absolutePath
+        return readIndex().filter { it.md5 == md5 && it.size == size }
+            .sortedWith(compareBy<Entry> { it.path != otaPath }.thenByDescending { it.lastUsed })
+            .firstOrNull()
+    }
+
+    // Drop @param entry from the index since its file didn't match its md5 anymore
+    @WorkerThread
+    @Synchronized
+    fun remove(entry: Entry) {
+        writeIndex(readIndex().filter { it.path != entry.path })
+        Log.w(TAG, "Removed ${entry.md5} at ${entry.path}")
+    }
+
+    // Report the indexed packages for dumpsys
+    @Synchronized
+    fun dump(prefix: String, writer: PrintWriter) {
+        val entries = readIndex()
+        writer.println("${prefix}PackageStore: ${entries.size} entries," +
+            " ${getEvictableSize(entries) / MB} of ${SPACE_BUDGET / MB} MB budget")
+        entries.forEach {
+            writer.println("$prefix  ${it.md5} size=${it.size} lastUsed=${it.lastUsed} ${it.path}")
+        }
+    }
+
+    /*
+     * Delete the least recently used copies in @param entries until they fit
+     * in the budget. The ota package is managed by OTAFileManager and
+     * @param keep was just added, neither of them are deleted.
+     */
+    private fun evict(entries: MutableList<Entry>, keep: File) {
+        val otaPath = ofm.getOTAFile().absolutePath
+        var evictableSize = getEvictableSize(entries)
+        entries.filter { it.path != otaPath && it.path != keep.absolutePath }
+            .sortedBy { it.lastUsed }
+            .forEach {
+                if (evictableSize <= SPACE_BUDGET) {
+                    return
+                }
+                if (!it.file.delete()) {
+                    Log.e(TAG, "deleting ${it.path} failed")
+                    return@forEach
+                }
+                Log.i(TAG, "Evicted ${it.md5} from ${it.path}")
+                entries.remove(it)
+                evictableSize -= it.size
+            }
+    }
+
+    private fun getEvictableSize(entries: List<Entry>): Long {
+        val otaPath = ofm.getOTAFile().absolutePath
+        return entries.filter { it.path != otaPath }.map { it.size }.sum()
+    }
+
+    // Indexed entries whose files are still unchanged
+    private fun readIndex() = dataStore.getPackageIndex()?.split(ENTRY_DELIMITER)
+        ?.mapNotNull { Entry.parse(it) }
+        ?.filter { it.isValid() }
+        ?: emptyList()
+
+    private fun writeIndex(entries: List<Entry>) {
+        dataStore.updatePackageIndex(entries.joinToString(ENTRY_DELIMITER) { it.serialize() })
+    }
+
+    companion object {
+        private const val TAG = "PackageStore"
+
+        // Max size of the copies outside the ota dir
+        private const val SPACE_BUDGET = 4096L * MB
+        private const val ENTRY_DELIMITER = "\n"
+        private const val FIELD_DELIMITER = "\t"
+    }
+}
@@ -23,11 +23,12 @@ data class PayloadInfo(
     var headerKeyValuePairs: Array<String?>? = null,
 ) {
     /*
-     * Returns true if and only if all of the properties are initialized properly
+     * Returns true if and only if all of the properties are initialized properly.
+     * The 4 payload properties may be followed by extra headers for update_engine.
      */
     fun validate(): Boolean =
         if (filePath == null || offset == -1L || size == -1L) false
         else headerKeyValuePairs?.let { array ->
-                array.size == 4 && array.all { it != null }
+                array.size >= 4 && array.all { it != null }
             } ?: false
 }
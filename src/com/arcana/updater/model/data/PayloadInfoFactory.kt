@@ -19,9 +19,14 @@ package com.arcana.updater.model.data
 import android.net.Uri
 import android.util.Log
 
+import androidx.annotation.WorkerThread
+
 import java.io.IOException
+import java.nio.charset.StandardCharsets
 import java.util.zip.ZipFile
 
+import okhttp3.OkHttpClient
+
 /*
  * Factory class to generate PayloadInfo object
  */
@@ -31,12 +36,16 @@ class PayloadInfoFactory private constructor() {
         private const val DEBUG = false
 
         // Metadata file path in the zip file
-        private const val METADATA_FILE = "META-INF/com/android/metadata"
+        const val METADATA_FILE = "META-INF/com/android/metadata"
         // File name of payload
-        private const val PAYLOAD_FILE_NAME = "payload.bin"
+        const val PAYLOAD_FILE_NAME = "payload.bin"
         // Text file containing header info
         private const val PAYLOAD_PROPERTIES_FILE = "payload_properties.txt"
 
+        // Entries of a package that are read to apply it
+        @JvmField
+        val PACKAGE_ENTRIES = setOf(METADATA_FILE, PAYLOAD_FILE_NAME, PAYLOAD_PROPERTIES_FILE)
+
         /*
          * Returns a PayloadInfo object with information parsed
          * from the given @param uri (file:// type) of a file
@@ -59,6 +68,48 @@ class PayloadInfoFactory private constructor() {
                 }
             }
 
+        /*
+         * Returns a PayloadInfo object for streaming the payload of the
+         * package described by @param buildInfo straight from its url.
+         * Payload location and properties are taken from the ota json if
+         * it has them, otherwise they are read from the remote zip with
+         * a few small range requests made with @param client.
+         */
+        @JvmStatic
+        @WorkerThread
+        fun createStreamingPayloadInfo(buildInfo: BuildInfo, client: OkHttpClient) =
+            PayloadInfo().also { payloadInfo ->
+                logD("streaming from ${buildInfo.url}")
+                payloadInfo.filePath = buildInfo.url
+                if (buildInfo.payloadOffset >= 0 && buildInfo.payloadSize > 0 &&
+                        buildInfo.payloadProperties.isNotEmpty()) {
+                    payloadInfo.offset = buildInfo.payloadOffset
+                    payloadInfo.size = buildInfo.payloadSize
+                    payloadInfo.headerKeyValuePairs =
+                        buildInfo.payloadProperties.toTypedArray<String?>()
+                    return@also
+                }
+                try {
+                    val zipReader = RemoteZipReader(client, buildInfo.url)
+                    val entries = zipReader.findEntries(
+                        setOf(PAYLOAD_FILE_NAME, PAYLOAD_PROPERTIES_FILE))
+                    entries[PAYLOAD_FILE_NAME]?.let {
+                        payloadInfo.offset = it.dataOffset
+                        payloadInfo.size = it.size
+                    }
+                    entries[PAYLOAD_PROPERTIES_FILE]?.let {
+                        payloadInfo.headerKeyValuePairs =
+                            String(zipReader.readEntry(it), StandardCharsets.UTF_8)
+                                .lines()
+                                .filter { line -> line.isNotBlank() }
+                                .toTypedArray<String?>()
+                    }
+                    logD("headerKeyValuePairs = ${payloadInfo.headerKeyValuePairs}")
+                } catch (e: IOException) {
+                    Log.e(TAG, "IOException while extracting payload info from ${buildInfo.url}", e)
+                }
+            }
+
         // Internal method to set payload offset and size from the opened ZipFile
         private fun setOffsetAndSize(
             zipFile: ZipFile,
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import android.os.Build
+import android.os.ServiceSpecificException
+import android.os.UpdateEngine
+import android.util.Log
+
+import androidx.annotation.StringRes
+import androidx.annotation.WorkerThread
+
+import com.arcana.updater.R
+import com.arcana.updater.util.Utils
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/*
+ * Checks that a package can be applied to this device before it is
+ * downloaded, from its metadata and payload header fetched with a few
+ * range requests. Catches the problems update_engine would otherwise
+ * only report after the whole package was downloaded.
+ */
+@Singleton
+class PreflightChecker @Inject constructor(
+    private val updateEngine: UpdateEngine,
+    private val ofm: OTAFileManager,
+) {
+    enum class Result(@StringRes val message: Int) {
+        OK(0),
+        NOT_AB(R.string.not_ab_package),
+        WRONG_DEVICE(R.string.wrong_device),
+        WRONG_SOURCE_BUILD(R.string.wrong_source_build),
+        DOWNGRADE(R.string.attempting_downgrade),
+        INVALID_PAYLOAD(R.string.invalid_zip_file),
+        METADATA_REJECTED(R.string.metadata_verification_failed),
+    }
+
+    /*
+     * Check the package read by @param zipReader. Throws an IOException
+     * if the parts needed for the check couldn't be fetched, in which
+     * case it is up to update_engine to check the package later.
+     */
+    @WorkerThread
+    @Throws(IOException::class)
+    fun check(zipReader: RemoteZipReader): Result {
+        val entries = zipReader.findEntries(setOf(PayloadInfoFactory.METADATA_FILE,
+            PayloadInfoFactory.PAYLOAD_FILE_NAME))
+        entries[PayloadInfoFactory.METADATA_FILE]?.let {
+            val result = checkMetadata(parseMetadata(
+                String(zipReader.readEntry(it), StandardCharsets.UTF_8)))
+            if (result != Result.OK) return result
+        }
+        val payload = entries[PayloadInfoFactory.PAYLOAD_FILE_NAME]
+            ?: return Result.INVALID_PAYLOAD
+        if (payload.size < PAYLOAD_HEADER_SIZE) {
+            return Result.INVALID_PAYLOAD
+        }
+        // Payload header is big endian
+        val header = ByteBuffer.wrap(zipReader.readEntry(payload, PAYLOAD_HEADER_SIZE))
+        if (header.int != PAYLOAD_MAGIC || header.long != PAYLOAD_MAJOR_VERSION) {
+            return Result.INVALID_PAYLOAD
+        }
+        val manifestSize = header.long
+        val metadataSize = PAYLOAD_HEADER_SIZE + manifestSize + (header.int.toLong() and 0xFFFFFFFF)
+        if (manifestSize <= 0 || metadataSize > payload.size) {
+            return Result.INVALID_PAYLOAD
+        }
+        return verifyPayloadMetadata(zipReader.readEntry(payload, metadataSize))
+    }
+
+    // Let update_engine check the signature and applicability of @param metadata
+    private fun verifyPayloadMetadata(metadata: ByteArray): Result {
+        val file = ofm.writePayloadMetadata(metadata) ?: return Result.OK
+        try {
+            return if (updateEngine.verifyPayloadMetadata(file.absolutePath)) Result.OK
+                else Result.METADATA_REJECTED
+        } catch (e: ServiceSpecificException) {
+            Log.w(TAG, "update_engine rejected payload metadata", e)
+            return Result.METADATA_REJECTED
+        } finally {
+            file.delete()
+        }
+    }
+
+    companion object {
+        private const val TAG = "PreflightChecker"
+
+        // "CrAU", major version, manifest size and metadata signature size
+        private const val PAYLOAD_MAGIC = 0x43724155
+        private const val PAYLOAD_MAJOR_VERSION = 2L
+        private const val PAYLOAD_HEADER_SIZE = 24L
+
+        // Metadata keys
+        private const val OTA_TYPE = "ota-type"
+        private const val PRE_DEVICE = "pre-device"
+        private const val PRE_BUILD = "pre-build"
+        private const val POST_TIMESTAMP = "post-timestamp"
+        private const val OTA_DOWNGRADE = "ota-downgrade"
+        private const val VALUE_DELIMITER = '|'
+
+        // Parse the key=value lines of the package @param metadata
+        private fun parseMetadata(metadata: String): Map<String, String> =
+            metadata.lines()
+                .filter { it.contains('=') }
+                .associate { it.substringBefore('=').trim() to it.substringAfter('=').trim() }
+
+        private fun checkMetadata(metadata: Map<String, String>): Result {
+            metadata[OTA_TYPE]?.let {
+                if (it != "AB") return Result.NOT_AB
+            }
+            metadata[PRE_DEVICE]?.split(VALUE_DELIMITER)?.let {
+                if (Build.DEVICE !in it && Utils.getDevice() !in it) return Result.WRONG_DEVICE
+            }
+            // Only incrementals have a source build
+            metadata[PRE_BUILD]?.split(VALUE_DELIMITER)?.let {
+                if (Build.FINGERPRINT !in it) return Result.WRONG_SOURCE_BUILD
+            }
+            if (metadata[OTA_DOWNGRADE] != "yes") {
+                metadata[POST_TIMESTAMP]?.toLongOrNull()?.let {
+                    if (it < Build.TIME / 1000) return Result.DOWNGRADE
+                }
+            }
+            return Result.OK
+        }
+    }
+}
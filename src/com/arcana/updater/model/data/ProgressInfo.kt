@@ -16,9 +16,18 @@
 
 package com.arcana.updater.model.data
 
-data class ProgressInfo(
+import com.arcana.updater.util.Utils
+
+data class ProgressInfo @JvmOverloads constructor(
     var status: String? = null,
     var extras: String? = null,
     var indeterminate: Boolean = false,
     var progress: Int = 0,
-)
+    var speed: String? = null,
+    var eta: String? = null,
+    var networkUsage: String? = null,
+) {
+    // Extras followed by data used per network, speed and time left, whichever are known
+    val details: String
+        get() = Utils.joinDetails(extras, networkUsage, speed, eta)
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.data
+
+import androidx.annotation.WorkerThread
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+
+/*
+ * Locates entries of a zip file served at @param url with a few small
+ * range requests (end of central directory, central directory and local
+ * headers) instead of downloading the whole file. Only stored (not
+ * compressed) entries can be read, which is all an ota package needs.
+ */
+class RemoteZipReader(
+    private val client: OkHttpClient,
+    private val url: String,
+) {
+    // Position of the data of a stored entry in the zip file
+    data class Entry(val dataOffset: Long, val size: Long)
+
+    // Central directory record of an entry, sizes and offset already resolved from zip64
+    private data class CentralEntry(
+        val name: String,
+        val method: Long,
+        val flags: Long,
+        val compressedSize: Long,
+        val localOffset: Long,
+    )
+
+    private var tail: ByteBuffer? = null
+    private var tailOffset = 0L
+
+    /*
+     * Find the entries with the given @param names. Entries
+     * that don't exist or are compressed are left out.
+     */
+    @WorkerThread
+    @Throws(IOException::class)
+    fun findEntries(names: Set<String>): Map<String, Entry> =
+        readCentralDirectory()
+            .filter { it.name in names && it.method == STORED }
+            .associate { it.name to Entry(getDataOffset(it.localOffset), it.compressedSize) }
+
+    /*
+     * Byte ranges of the file a reader needs to open it as a zip and
+     * extract the entries with the given @param names: the start of the
+     * file, the local headers and data of those entries, and everything
+     * from the central directory to the end. The rest of the file can be
+     * left out (zeroed) without moving anything. Returns null if any of
+     * the entries doesn't exist.
+     */
+    @WorkerThread
+    @Throws(IOException::class)
+    fun findRanges(names: Set<String>): List<LongRange>? {
+        val (cdOffset, _) = findCentralDirectory()
+        val entries = readCentralDirectory().filter { it.name in names }
+        if (entries.map { it.name }.toSet() != names) {
+            return null
+        }
+        val ranges = mutableListOf<LongRange>()
+        // Readers check the signature at the start of the file
+        ranges.add(0L until LOC_HEADER_SIZE.toLong())
+        entries.forEach {
+            var end = getDataOffset(it.localOffset) + it.compressedSize
+            if ((it.flags and DATA_DESCRIPTOR_FLAG) != 0L) {
+                end = minOf(end + MAX_DATA_DESCRIPTOR_SIZE, cdOffset)
+            }
+            ranges.add(it.localOffset until end)
+        }
+        ranges.add(cdOffset until getFileSize())
+        return ranges
+    }
+
+    // First @param size bytes of the stored @param entry, all of it by default
+    @WorkerThread
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun readEntry(entry: Entry, size: Long = entry.size): ByteArray {
+        val buffer = read(entry.dataOffset, minOf(size, entry.size))
+        return ByteArray(buffer.remaining()).also { buffer.get(it) }
+    }
+
+    private fun readCentralDirectory(): List<CentralEntry> {
+        val (cdOffset, cdSize) = findCentralDirectory()
+        val cd = read(cdOffset, cdSize)
+        val entries = mutableListOf<CentralEntry>()
+        while (cd.remaining() >= CEN_HEADER_SIZE) {
+            val header = cd.position()
+            if (cd.getInt(header) != CEN_SIGNATURE) {
+                throw IOException("Malformed central directory at ${cdOffset + header}")
+            }
+            val flags = cd.getShort(header + 8).toUnsigned()
+            val method = cd.getShort(header + 10).toUnsigned()
+            var compressedSize = cd.getInt(header + 20).toUnsigned()
+            val nameLength = cd.getShort(header + 28).toUnsigned().toInt()
+            val extraLength = cd.getShort(header + 30).toUnsigned().toInt()
+            val commentLength = cd.getShort(header + 32).toUnsigned().toInt()
+            var localOffset = cd.getInt(header + 42).toUnsigned()
+            val nameBytes = ByteArray(nameLength)
+            cd.position(header + CEN_HEADER_SIZE)
+            cd.get(nameBytes)
+            // Replace values that didn't fit in 32 bits from the zip64 extra field
+            val extra = cd.slice().order(ByteOrder.LITTLE_ENDIAN)
+            extra.limit(extraLength)
+            findZip64Extra(extra)?.let {
+                if (cd.getInt(header + 24).toUnsigned() == ZIP64_MARKER) {
+                    it.position(it.position() + 8) // Uncompressed size comes first
+                }
+                if (compressedSize == ZIP64_MARKER) compressedSize = it.long
+                if (localOffset == ZIP64_MARKER) localOffset = it.long
+            }
+            entries.add(CentralEntry(String(nameBytes, StandardCharsets.UTF_8),
+                method, flags, compressedSize, localOffset))
+            cd.position(header + CEN_HEADER_SIZE + nameLength + extraLength + commentLength)
+        }
+        return entries
+    }
+
+    // Returns offset and size of the central directory
+    private fun findCentralDirectory(): Pair<Long, Long> {
+        val buffer = fetchTail()
+        var eocd = buffer.limit() - EOCD_SIZE
+        while (eocd >= 0 && buffer.getInt(eocd) != EOCD_SIGNATURE) {
+            eocd--
+        }
+        if (eocd < 0) {
+            throw IOException("End of central directory not found in $url")
+        }
+        val cdSize = buffer.getInt(eocd + 12).toUnsigned()
+        val cdOffset = buffer.getInt(eocd + 16).toUnsigned()
+        if (cdSize != ZIP64_MARKER && cdOffset != ZIP64_MARKER) {
+            return Pair(cdOffset, cdSize)
+        }
+        // Zip64, the locator is right before the end of central directory
+        val locator = eocd - ZIP64_LOCATOR_SIZE
+        if (locator < 0 || buffer.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+            throw IOException("Zip64 end of central directory locator not found in $url")
+        }
+        val record = read(buffer.getLong(locator + 8), ZIP64_EOCD_SIZE.toLong())
+        if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+            throw IOException("Malformed zip64 end of central directory in $url")
+        }
+        return Pair(record.getLong(48), record.getLong(40))
+    }
+
+    // Offset of the data of the entry whose local header is at @param localOffset
+    private fun getDataOffset(localOffset: Long): Long {
+        val header = read(localOffset, LOC_HEADER_SIZE.toLong())
+        if (header.getInt(0) != LOC_SIGNATURE) {
+            throw IOException("Malformed local header at $localOffset")
+        }
+        return localOffset + LOC_HEADER_SIZE + header.getShort(26).toUnsigned() +
+            header.getShort(28).toUnsigned()
+    }
+
+    // Buffer positioned at the data of the zip64 extra field in @param extra, if any
+    private fun findZip64Extra(extra: ByteBuffer): ByteBuffer? {
+        while (extra.remaining() >= 4) {
+            val id = extra.getShort().toUnsigned()
+            val size = extra.getShort().toUnsigned().toInt()
+            if (id == ZIP64_EXTRA_ID) return extra
+            extra.position(minOf(extra.position() + size, extra.limit()))
+        }
+        return null
+    }
+
+    // The tail is the last part of the file, so it ends where the file does
+    private fun getFileSize(): Long {
+        val buffer = fetchTail()
+        return tailOffset + buffer.limit()
+    }
+
+    // Fetch the part of the file that may contain the end of central directory
+    private fun fetchTail(): ByteBuffer {
+        tail?.let { return it.duplicate().order(ByteOrder.LITTLE_ENDIAN) }
+        val (offset, buffer) = fetch("bytes=-$MAX_TAIL_SIZE")
+        tail = buffer
+        tailOffset = offset
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    // Read @param size bytes at @param offset, from the fetched tail if possible
+    private fun read(offset: Long, size: Long): ByteBuffer {
+        val buffer = tail
+        if (buffer != null && offset >= tailOffset &&
+                offset + size <= tailOffset + buffer.limit()) {
+            val start = (offset - tailOffset).toInt()
+            return buffer.duplicate().apply {
+                position(start)
+                limit(start + size.toInt())
+            }.slice().order(ByteOrder.LITTLE_ENDIAN)
+        }
+        if (size > MAX_READ_SIZE) {
+            throw IOException("Refusing to read $size bytes at $offset")
+        }
+        return fetch("bytes=$offset-${offset + size - 1}").second
+    }
+
+    // Returns the start offset and the data of a @param range request
+    private fun fetch(range: String): Pair<Long, ByteBuffer> {
+        val request = Request.Builder()
+            .url(url)
+            .header("Range", range)
+            .header("Accept-Encoding", "identity")
+            .build()
+        client.newCall(request).execute().use { response ->
+            if (response.code != 206) {
+                throw IOException("Range request for $range returned ${response.code}")
+            }
+            val match = response.header("Content-Range")?.let { CONTENT_RANGE_PATTERN.find(it) }
+                ?: throw IOException("Missing Content-Range for $range")
+            val bytes = response.body?.bytes() ?: throw IOException("Empty response for $range")
+            return Pair(match.groupValues[1].toLong(),
+                ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN))
+        }
+    }
+
+    private fun Short.toUnsigned() = toLong() and 0xFFFF
+    private fun Int.toUnsigned() = toLong() and 0xFFFFFFFF
+
+    companion object {
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val CEN_SIGNATURE = 0x02014b50
+        private const val LOC_SIGNATURE = 0x04034b50
+        private const val ZIP64_EOCD_SIGNATURE = 0x06064b50
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_EXTRA_ID = 0x0001L
+        private const val ZIP64_MARKER = 0xFFFFFFFF
+
+        private const val EOCD_SIZE = 22
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EOCD_SIZE = 56
+        private const val CEN_HEADER_SIZE = 46
+        private const val LOC_HEADER_SIZE = 30
+        private const val STORED = 0L
+        private const val DATA_DESCRIPTOR_FLAG = 0x08L
+        // Signature, crc and zip64 sizes
+        private const val MAX_DATA_DESCRIPTOR_SIZE = 24L
+
+        // End of central directory, max comment length and zip64 records
+        private const val MAX_TAIL_SIZE = EOCD_SIZE + 0xFFFF + ZIP64_LOCATOR_SIZE + ZIP64_EOCD_SIZE
+        // Central directories of ota packages are tiny, anything this big is bogus
+        private const val MAX_READ_SIZE = 16L * 1024 * 1024
+
+        private val CONTENT_RANGE_PATTERN = Regex("""bytes (\d+)-\d+/(\d+|\*)""")
+    }
+}
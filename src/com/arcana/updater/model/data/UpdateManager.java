@@ -20,6 +20,7 @@ import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static android.os.UpdateEngine.ErrorCodeConstants.*;
 import static android.os.UpdateEngine.UpdateStatusConstants.*;
 import static com.arcana.updater.util.Constants.BATTERY_LOW;
+import static com.arcana.updater.util.Constants.DOWNLOAD_PENDING;
 import static com.arcana.updater.util.Constants.INDETERMINATE;
 import static com.arcana.updater.util.Constants.UPDATE_PENDING;
 import static com.arcana.updater.util.Constants.UPDATING;
@@ -41,27 +42,51 @@ import androidx.annotation.WorkerThread;
 
 import com.arcana.updater.model.data.DataStore;
 import com.arcana.updater.R;
+import com.arcana.updater.util.Constants;
 import com.arcana.updater.util.NotificationHelper;
+import com.arcana.updater.util.ThroughputEstimator;
+import com.arcana.updater.workers.PartialFileServer;
 
 import io.reactivex.rxjava3.processors.BehaviorProcessor;
 
+import java.io.IOException;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import okhttp3.OkHttpClient;
+
 @Singleton
 public class UpdateManager {
     private static final String TAG = "UpdateManager";
+    private static final long PROGRESS_UNITS = 10000;
+    // update_engine error codes (error_code.h) that ErrorCodeConstants doesn't have
+    private static final int DOWNLOAD_STATE_INITIALIZATION_ERROR = 20;
+    private static final int DOWNLOAD_OPERATION_HASH_VERIFICATION_ERROR = 27;
+    private static final int DOWNLOAD_OPERATION_HASH_MISMATCH = 29;
     private final OTAFileManager ofm;
     private final UpdateEngine updateEngine;
     private final NotificationHelper helper;
     private final DataStore dataStore;
     private final BehaviorProcessor<UpdateStatus> updateStatusProcessor;
     private final BatteryMonitor batteryMonitor;
+    private final OkHttpClient client;
+    private final PartialFileServer partialFileServer;
+    // update_engine only reports a fraction, estimate time left on this scale
+    private final ThroughputEstimator progressEstimator = new ThroughputEstimator();
     private HandlerThread thread;
     private Handler bgHandler, mainHandler;
     private UpdateStatus updateStatus;
     private boolean updateQueued;
     private boolean isUpdating;
+    private Source source = Source.LOCAL;
+
+    // Where update_engine reads the payload from
+    private enum Source {
+        LOCAL, // Downloaded or copied package
+        STREAMING, // Package url on the server
+        PIPELINED, // Download in progress, through the PartialFileServer
+    }
 
     private final UpdateEngineCallback updateEngineCallback = new UpdateEngineCallback() {
         @Override
@@ -70,7 +95,11 @@ public class UpdateManager {
                 if (getCurrentStatusCode() != UPDATING) {
                     updateStatus.setStatusCode(UPDATING);
                 }
-                updateStatus.setStep(status == DOWNLOADING ? 1 : 2);
+                final int step = status == DOWNLOADING ? 1 : 2;
+                if (updateStatus.getStep() != step) {
+                    progressEstimator.reset(); // Steps progress at different rates
+                }
+                updateStatus.setStep(step);
                 updateStatusProcessor.onNext(updateStatus);
             }
             switch (status) {
@@ -85,6 +114,9 @@ public class UpdateManager {
                     isUpdating = true;
                 case FINALIZING:
                     updateStatus.setProgress((int) (percent*100));
+                    final long done = (long) (percent*PROGRESS_UNITS);
+                    progressEstimator.update(done);
+                    updateStatus.setEta(progressEstimator.getEta(PROGRESS_UNITS - done));
                     updateStatusProcessor.onNext(updateStatus);
                     break;
                 case UPDATED_NEED_REBOOT:
@@ -105,6 +137,10 @@ public class UpdateManager {
         public void onPayloadApplicationComplete(int errorCode) {
             updateQueued = false;
             isUpdating = false;
+            partialFileServer.stop(); // update_engine is done reading
+            if (isSourceMismatch(errorCode) && fallBackToFullBuild()) {
+                return;
+            }
             switch (errorCode) {
                 case SUCCESS:
                     updateStatus.setStatusCode(FINISHED);
@@ -135,12 +171,15 @@ public class UpdateManager {
     @Inject
     public UpdateManager(UpdateEngine updateEngine, OTAFileManager ofm,
             NotificationHelper helper, DataStore dataStore,
-            BatteryMonitor batteryMonitor) {
+            BatteryMonitor batteryMonitor, OkHttpClient client,
+            PartialFileServer partialFileServer) {
         this.updateEngine = updateEngine;
         this.ofm = ofm;
         this.helper = helper;
         this.dataStore = dataStore;
         this.batteryMonitor = batteryMonitor;
+        this.client = client;
+        this.partialFileServer = partialFileServer;
         thread = new HandlerThread(TAG, THREAD_PRIORITY_BACKGROUND);
         updateStatus = new UpdateStatus();
         updateStatusProcessor = BehaviorProcessor.create();
@@ -157,6 +196,15 @@ public class UpdateManager {
 
     @WorkerThread
     public void start() {
+        start(false);
+    }
+
+    /*
+     * Apply the update, if @param pipelined is true from the download in
+     * progress, whose data update_engine then waits for as it goes
+     */
+    @WorkerThread
+    public void start(boolean pipelined) {
         if (updateQueued) {
             return;
         }
@@ -173,8 +221,29 @@ public class UpdateManager {
         thread.start();
         bgHandler = new Handler(thread.getLooper());
         updateEngine.setPerformanceMode(true);
-        final PayloadInfo payloadInfo = PayloadInfoFactory.createPayloadInfo(
-            ofm.getOTAFileUri());
+        // Without a downloaded package update_engine can fetch the payload itself
+        final BuildInfo buildInfo = dataStore.getBuildInfo();
+        if (pipelined && buildInfo != null) {
+            source = Source.PIPELINED;
+        } else if (!ofm.hasOTAFile() && buildInfo != null &&
+                dataStore.isStreamingInstallEnabled()) {
+            source = Source.STREAMING;
+        } else {
+            source = Source.LOCAL;
+        }
+        final PayloadInfo payloadInfo = source == Source.LOCAL ?
+            PayloadInfoFactory.createPayloadInfo(ofm.getOTAFileUri()) :
+            PayloadInfoFactory.createStreamingPayloadInfo(buildInfo, client);
+        if (source == Source.PIPELINED) {
+            // Payload location is the same, only the data comes from the local copy
+            try {
+                payloadInfo.setFilePath(partialFileServer.start());
+            } catch (IOException e) {
+                Log.e(TAG, "IOException when starting the partial file server", e);
+                resetAndNotify(R.string.update_failed);
+                return;
+            }
+        }
         if (!payloadInfo.validate()) {
             resetAndNotify(R.string.invalid_zip_file);
             return;
@@ -204,6 +273,7 @@ public class UpdateManager {
                     return;
                 }
                 updateEngine.resume();
+                progressEstimator.reset(); // Time spent paused is not progress
                 updateStatus.setStatusCode(INDETERMINATE);
                 updateStatusProcessor.onNext(updateStatus);
             }
@@ -234,8 +304,25 @@ public class UpdateManager {
         return isUpdating;
     }
 
+    // Status to go back to when an update didn't go through
+    public int getPendingStatus() {
+        switch (source) {
+            case STREAMING:
+                return DOWNLOAD_PENDING;
+            case PIPELINED:
+                if (isDownloadInProgress()) {
+                    // Download goes on without the update, DOWNLOADING alone is update_engine's
+                    return Constants.DOWNLOADING;
+                }
+                return ofm.hasOTAFile() ? UPDATE_PENDING : DOWNLOAD_PENDING;
+            default:
+                return UPDATE_PENDING;
+        }
+    }
+
     public void userInitiatedReset() {
         reset();
+        progressEstimator.reset();
         updateStatus = new UpdateStatus();
         updateStatusProcessor.onNext(updateStatus);
     }
@@ -244,6 +331,11 @@ public class UpdateManager {
         bgHandler.post(() -> dataStore.setGlobalStatus(status));
     }
 
+    private boolean isDownloadInProgress() {
+        final int downloadStatus = dataStore.getDownloadStatusCode();
+        return downloadStatus >= INDETERMINATE && downloadStatus <= PAUSED;
+    }
+
     private void updateEngineReset() {
         try {
             updateEngine.cancel();
@@ -256,6 +348,7 @@ public class UpdateManager {
     }
 
     private void reset() {
+        partialFileServer.stop();
         updateEngine.cleanupAppliedPayload();
         updateEngine.resetStatus();
         updateEngine.unbind();
@@ -264,12 +357,56 @@ public class UpdateManager {
     private void resetAndNotify(int msgId) {
         updateStatus.setStatusCode(FAILED);
         updateStatusProcessor.onNext(updateStatus);
-        setGlobalStatus(UPDATE_PENDING);
+        setGlobalStatus(getPendingStatus());
         reset();
         helper.notifyOrToast(R.string.update_failed, msgId, mainHandler);
         thread.quitSafely();
     }
 
+    // Whether @param errorCode means that an incremental can't apply to the installed build
+    private static boolean isSourceMismatch(int errorCode) {
+        switch (errorCode) {
+            case PAYLOAD_MISMATCHED_TYPE_ERROR:
+            case DOWNLOAD_STATE_INITIALIZATION_ERROR:
+            case DOWNLOAD_OPERATION_HASH_VERIFICATION_ERROR:
+            case DOWNLOAD_OPERATION_HASH_MISMATCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * An incremental that doesn't match the installed build won't apply
+     * on a retry either, so replace it with the full build. Returns false if the update
+     * isn't an incremental (or a local upgrade) or its download is
+     * still going on.
+     */
+    private boolean fallBackToFullBuild() {
+        final BuildInfo buildInfo = dataStore.getBuildInfo();
+        if (buildInfo == null || !buildInfo.isIncremental() ||
+                !dataStore.getLocalUpgradeFileName().isEmpty() ||
+                (source == Source.PIPELINED && isDownloadInProgress())) {
+            return false;
+        }
+        Log.w(TAG, "incremental " + buildInfo.getFileName() + " failed, falling back to " +
+            buildInfo.getFullBuild().getFileName());
+        updateStatus.setStatusCode(FAILED);
+        updateStatusProcessor.onNext(updateStatus);
+        reset();
+        bgHandler.post(() -> {
+            dataStore.setFailedIncremental(buildInfo.getMd5());
+            dataStore.updateBuildInfo(buildInfo.getFullBuild());
+            dataStore.deleteDownloadStatus();
+            ofm.deleteDownloads();
+            dataStore.setGlobalStatus(DOWNLOAD_PENDING);
+        });
+        helper.notifyOrToast(R.string.update_failed,
+            R.string.incremental_update_failed, mainHandler);
+        thread.quitSafely();
+        return true;
+    }
+
     private void notifyBatteryIsLow() {
         helper.notifyOrToast(R.string.battery_low,
             R.string.plug_in_charger, mainHandler);
@@ -20,4 +20,5 @@ data class UpdateStatus(
     var step: Int = 0,
     var statusCode: Int = 0,
     var progress: Int = 0,
+    var eta: Long = -1, // Seconds, -1 if unknown
 )
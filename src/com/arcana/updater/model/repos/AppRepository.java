@@ -23,6 +23,7 @@ import static android.graphics.Typeface.BOLD;
 import static android.os.PowerManager.REBOOT_REQUESTED_BY_DEVICE_OWNER;
 import static android.text.Spannable.SPAN_EXCLUSIVE_EXCLUSIVE;
 import static com.arcana.updater.util.Constants.DOWNLOAD_PENDING;
+import static com.arcana.updater.util.Constants.DOWNLOADING;
 import static com.arcana.updater.util.Constants.FINISHED;
 import static com.arcana.updater.util.Constants.REBOOT_PENDING;
 import static com.arcana.updater.util.Constants.UPDATE_PENDING;
@@ -40,6 +41,7 @@ import android.util.Log;
 
 import com.arcana.updater.model.data.BuildInfo;
 import com.arcana.updater.model.data.ChangelogInfo;
+import com.arcana.updater.model.data.ChunkManifestStore;
 import com.arcana.updater.model.data.DataStore;
 import com.arcana.updater.model.data.DownloadManager;
 import com.arcana.updater.model.data.ResponseCode;
@@ -78,6 +80,7 @@ public class AppRepository {
     private final UpdateManager updateManager;
     private final GithubApiHelper githubApiHelper;
     private final DataStore dataStore;
+    private final ChunkManifestStore chunkManifestStore;
     private final String changelogPrefix;
 
     private Future fetchingBuildInfo, fetchingChangelog;
@@ -89,7 +92,8 @@ public class AppRepository {
         DownloadManager downloadManager,
         UpdateManager updateManager,
         GithubApiHelper githubApiHelper,
-        DataStore dataStore
+        DataStore dataStore,
+        ChunkManifestStore chunkManifestStore
     ) {
         this.context = context;
         this.executor = executor;
@@ -97,6 +101,7 @@ public class AppRepository {
         this.updateManager = updateManager;
         this.githubApiHelper = githubApiHelper;
         this.dataStore = dataStore;
+        this.chunkManifestStore = chunkManifestStore;
         alarmManager = context.getSystemService(AlarmManager.class);
         otaResponsePublisher = BehaviorProcessor.createDefault(
             new Response(null, ResponseCode.EMPTY_RESPONSE));
@@ -130,14 +135,26 @@ public class AppRepository {
         logD("submitting job to the executor");
         fetchingBuildInfo = executor.submit(() -> {
             logD("started fetching build info");
-            final BuildInfo buildInfo = githubApiHelper.getBuildInfo(Utils.getDevice());
+            final BuildInfo buildInfo = githubApiHelper.getBuildInfo(
+                Utils.getDevice(), dataStore.getFailedIncremental());
             logD("buildInfo = " + buildInfo);
             ResponseCode code = ResponseCode.EMPTY_RESPONSE;
+            boolean prefetch = false;
             if (buildInfo != null) {
                 if (buildInfo.getDate() > Utils.getBuildDate()) {
+                    // Don't throw away a download of this very build
+                    final boolean alreadyFetched = isCurrentBuild(buildInfo) &&
+                        (downloadManager.isDownloading() ||
+                            dataStore.getGlobalStatus() == UPDATE_PENDING);
                     dataStore.updateBuildInfo(buildInfo);
+                    chunkManifestStore.update(buildInfo.getMd5(),
+                        githubApiHelper.getChunkManifest(Utils.getDevice()));
                     dataStore.setEntryDate(System.currentTimeMillis());
-                    dataStore.setGlobalStatus(DOWNLOAD_PENDING);
+                    if (!alreadyFetched) {
+                        dataStore.setGlobalStatus(DOWNLOAD_PENDING);
+                        prefetch = dataStore.isAutoDownloadEnabled() &&
+                            !downloadManager.isDownloading();
+                    }
                     code = ResponseCode.NEW_DATA;
                 } else {
                     code = ResponseCode.UP_TO_DATE;
@@ -148,9 +165,22 @@ public class AppRepository {
             logD("code = " + code);
             setAlarm(DAYS.toMillis(getRefreshInterval()));
             otaResponsePublisher.onNext(new Response(buildInfo, code));
+            if (prefetch) {
+                logD("prefetching " + buildInfo.getFileName());
+                downloadManager.startInBackground();
+                dataStore.setGlobalStatus(DOWNLOADING);
+            } else if (code == ResponseCode.NEW_DATA) {
+                downloadManager.prewarm(buildInfo.getUrl());
+            }
         });
     }
 
+    // Returns true if @param buildInfo is the build we already know about
+    private boolean isCurrentBuild(BuildInfo buildInfo) {
+        final BuildInfo current = dataStore.getBuildInfo();
+        return current != null && buildInfo.getMd5().equals(current.getMd5());
+    }
+
     public void fetchChangelog() {
         if (fetchingChangelog != null && !fetchingChangelog.isDone()) {
             fetchingChangelog.cancel(true);
@@ -230,6 +260,80 @@ public class AppRepository {
         setAlarm(DAYS.toMillis(days));
     }
 
+    public int getDownloadConnections() {
+        return dataStore.getDownloadConnections();
+    }
+
+    public void updateDownloadConnections(int connections) {
+        dataStore.setDownloadConnections(connections);
+    }
+
+    public int getDownloadRateLimit() {
+        return dataStore.getDownloadRateLimit();
+    }
+
+    public void updateDownloadRateLimit(int mbps) {
+        dataStore.setDownloadRateLimit(mbps);
+    }
+
+    public int getBackgroundDownloadRateLimit() {
+        return dataStore.getBackgroundDownloadRateLimit();
+    }
+
+    public void updateBackgroundDownloadRateLimit(int mbps) {
+        dataStore.setBackgroundDownloadRateLimit(mbps);
+    }
+
+    public boolean isAutoDownloadEnabled() {
+        return dataStore.isAutoDownloadEnabled();
+    }
+
+    public void updateAutoDownload(boolean enabled) {
+        dataStore.setAutoDownload(enabled);
+    }
+
+    public boolean isStreamingInstallEnabled() {
+        return dataStore.isStreamingInstallEnabled();
+    }
+
+    public void updateStreamingInstall(boolean enabled) {
+        dataStore.setStreamingInstall(enabled);
+        // Publish the status again so that the update button shows up or goes away
+        dataStore.setGlobalStatus(dataStore.getGlobalStatus());
+    }
+
+    public boolean isPipelinedInstallEnabled() {
+        return dataStore.isPipelinedInstallEnabled();
+    }
+
+    public void updatePipelinedInstall(boolean enabled) {
+        dataStore.setPipelinedInstall(enabled);
+    }
+
+    public boolean isSelectiveDownloadEnabled() {
+        return dataStore.isSelectiveDownloadEnabled();
+    }
+
+    public void updateSelectiveDownload(boolean enabled) {
+        dataStore.setSelectiveDownload(enabled);
+    }
+
+    public int getNetworkPolicy() {
+        return dataStore.getNetworkPolicy();
+    }
+
+    public void updateNetworkPolicy(int policy) {
+        dataStore.setNetworkPolicy(policy);
+    }
+
+    public int getCellularCap() {
+        return dataStore.getCellularCap();
+    }
+
+    public void updateCellularCap(int mb) {
+        dataStore.setCellularCap(mb);
+    }
+
     public void updateThemeInDataStore(int mode) {
         dataStore.updateThemeMode(mode);
     }
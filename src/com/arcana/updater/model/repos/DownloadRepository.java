@@ -47,6 +47,7 @@ import com.arcana.updater.model.data.DownloadStatus;
 import com.arcana.updater.model.data.ProgressInfo;
 import com.arcana.updater.R;
 import com.arcana.updater.model.data.DownloadManager;
+import com.arcana.updater.model.data.OTAFileManager;
 import com.arcana.updater.util.Utils;
 import com.arcana.updater.workers.DownloadWorker;
 
@@ -67,16 +68,18 @@ public class DownloadRepository {
     private final WorkManager workManager;
     private final DownloadManager downloadManager;
     private final DataStore dataStore;
+    private final OTAFileManager ofm;
 
     @Inject
     public DownloadRepository(Context context, DownloadManager downloadManager,
             WorkManager workManager, ExecutorService executor,
-            DataStore dataStore) {
+            DataStore dataStore, OTAFileManager ofm) {
         this.context = context;
         this.downloadManager = downloadManager;
         this.executor = executor;
         this.workManager = workManager;
         this.dataStore = dataStore;
+        this.ofm = ofm;
     }
 
     public void startDownload() {
@@ -132,11 +135,16 @@ public class DownloadRepository {
         }
         final String extras = String.format("%d/%d MB", (int) (downloadStatus.getDownloadedSize() / MB),
                 (int) downloadStatus.getFileSize() / MB);
+        // Speed and time left only make sense while data is moving
+        final boolean downloading = statusCode == DOWNLOADING;
         return new ProgressInfo(
             status,
             extras,
             statusCode == INDETERMINATE,
-            downloadStatus.getProgress()
+            downloadStatus.getProgress(),
+            downloading ? Utils.formatSpeed(context, downloadStatus.getSpeed()) : null,
+            downloading ? Utils.formatEta(context, downloadStatus.getEta()) : null,
+            Utils.formatNetworkUsage(context, downloadStatus.getNetworkUsage())
         );
     }
 
@@ -169,6 +177,7 @@ public class DownloadRepository {
     private void clearCache() {
         Arrays.stream(context.getExternalCacheDir()
             .listFiles()).forEach(file -> file.delete());
+        ofm.deletePartialFiles();
     }
 
     private String getString(int id) {
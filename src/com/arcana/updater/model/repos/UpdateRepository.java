@@ -37,6 +37,8 @@ import com.arcana.updater.model.data.ProgressInfo;
 import com.arcana.updater.model.data.UpdateManager;
 import com.arcana.updater.model.data.UpdateStatus;
 import com.arcana.updater.R;
+import com.arcana.updater.util.ThroughputEstimator;
+import com.arcana.updater.util.Utils;
 
 import io.reactivex.rxjava3.processors.BehaviorProcessor;
 
@@ -67,8 +69,9 @@ public class UpdateRepository {
         this.dataStore = dataStore;
     }
 
-    public void startUpdate() {
-        executor.execute(() -> updateManager.start());
+    // If @param pipelined is true the download in progress is applied as it goes
+    public void startUpdate(boolean pipelined) {
+        executor.execute(() -> updateManager.start(pipelined));
     }
 
     public void pauseUpdate(boolean pause) {
@@ -83,7 +86,7 @@ public class UpdateRepository {
         executor.execute(() -> {
             if (updateManager.isUpdating()) {
                 updateManager.cancel();
-                dataStore.setGlobalStatus(UPDATE_PENDING);
+                dataStore.setGlobalStatus(updateManager.getPendingStatus());
             }
         });
     }
@@ -94,8 +97,10 @@ public class UpdateRepository {
 
     public void setupLocalUpgrade(String fileName, Uri uri) {
         executor.execute(() -> {
+            final ThroughputEstimator estimator = new ThroughputEstimator();
             try (InputStream inStream = context.getContentResolver().openInputStream(uri)) {
-                if (ofm.copyToOTAPackageDir(inStream)) {
+                if (ofm.copyToOTAPackageDir(inStream, estimator::update)) {
+                    Log.i(TAG, "Copied " + fileName + " at " + estimator.getRate() + " B/s");
                     dataStore.setLocalUpgradeFileName(fileName);
                     dataStore.setGlobalStatus(UPDATE_PENDING);
                 }
@@ -132,7 +137,10 @@ public class UpdateRepository {
             status,
             extras,
             updateStatus.getStatusCode() == INDETERMINATE,
-            updateStatus.getProgress()
+            updateStatus.getProgress(),
+            null, // update_engine doesn't report bytes
+            updateStatus.getStatusCode() == UPDATING ?
+                Utils.formatEta(context, updateStatus.getEta()) : null
         );
     }
 
@@ -34,6 +34,9 @@ interface GithubApiService {
     @GET
     fun getOTAJsonContent(@Url url: String): Call<OTAJsonContent>
 
+    @GET
+    fun getChunkManifest(@Url url: String): Call<ChunkManifest>
+
     @GET
     fun getChangelog(@Url url: String): Call<String?>
 }
\ No newline at end of file
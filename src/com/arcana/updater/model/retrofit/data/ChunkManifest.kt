@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.retrofit.data
+
+import com.google.gson.annotations.SerializedName
+
+/*
+ * Hashes of every chunkSize bytes block of an ota package,
+ * last block may be shorter.
+ */
+class ChunkManifest {
+    @SerializedName("chunk_size")
+    var chunkSize: Long = 0
+
+    @SerializedName("algorithm")
+    var algorithm: String = "SHA-256"
+
+    @SerializedName("hashes")
+    var hashes: List<String> = listOf()
+
+    // Returns true if this manifest has exactly one hash per chunk of @param fileSize
+    fun isValidFor(fileSize: Long): Boolean =
+        chunkSize > 0 && hashes.size.toLong() == (fileSize + chunkSize - 1) / chunkSize
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.model.retrofit.data
+
+import com.google.gson.annotations.SerializedName
+
+// Incremental package in ota.json, applies on top of one source build only
+class IncrementalContent {
+    // Date of the source build, in the same unit as the date of ota.json
+    @SerializedName("source_date")
+    var sourceDate: Long = 0
+
+    // Optional, fingerprint of the source build, preferred over the date if present
+    @SerializedName("source_fingerprint")
+    var sourceFingerprint: String? = null
+
+    @SerializedName("url")
+    var url: String = ""
+
+    @SerializedName("filename")
+    var fileName: String = ""
+
+    @SerializedName("filesize")
+    var fileSize: Long = 0
+
+    @SerializedName("md5")
+    var md5: String = ""
+
+    @SerializedName("mirrors")
+    var mirrors: List<String>? = null
+
+    @SerializedName("chunk_manifest")
+    var chunkManifest: String? = null
+
+    @SerializedName("payload_offset")
+    var payloadOffset: Long = -1
+
+    @SerializedName("payload_size")
+    var payloadSize: Long = -1
+
+    @SerializedName("payload_properties")
+    var payloadProperties: List<String>? = null
+}
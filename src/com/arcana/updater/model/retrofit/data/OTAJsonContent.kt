@@ -36,4 +36,27 @@ class OTAJsonContent {
 
     @SerializedName("md5")
     var md5: String = ""
-}
\ No newline at end of file
+
+    // Optional, other urls serving the same file
+    @SerializedName("mirrors")
+    var mirrors: List<String>? = null
+
+    // Optional, file name (relative to ota.json) or url of the ChunkManifest
+    @SerializedName("chunk_manifest")
+    var chunkManifest: String? = null
+
+    // Optional, offset and size of payload.bin in the zip, for streaming installs
+    @SerializedName("payload_offset")
+    var payloadOffset: Long = -1
+
+    @SerializedName("payload_size")
+    var payloadSize: Long = -1
+
+    // Optional, lines of payload_properties.txt
+    @SerializedName("payload_properties")
+    var payloadProperties: List<String>? = null
+
+    // Optional, incremental packages from older builds to this one
+    @SerializedName("incrementals")
+    var incrementals: List<IncrementalContent>? = null
+}
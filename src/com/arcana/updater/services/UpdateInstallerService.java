@@ -18,6 +18,7 @@ package com.arcana.updater.services;
 
 import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
 import static com.arcana.updater.util.Constants.ACION_START_UPDATE;
+import static com.arcana.updater.util.Constants.EXTRA_PIPELINED;
 import static com.arcana.updater.util.Constants.CANCELLED;
 import static com.arcana.updater.util.Constants.FAILED;
 import static com.arcana.updater.util.Constants.FINISHED;
@@ -84,7 +85,7 @@ public class UpdateInstallerService extends Service {
         logD("onStartCommand");
         if (intent != null && intent.getAction().equals(ACION_START_UPDATE)) {
             logD("starting update");
-            startUpdate();
+            startUpdate(intent.getBooleanExtra(EXTRA_PIPELINED, false));
             disposable = repository.getUpdateStatusProcessor()
                 .filter(status -> status.getStatusCode() != 0)
                 .subscribe(status -> {
@@ -97,6 +98,7 @@ public class UpdateInstallerService extends Service {
                         notificationHelper.notify(UPDATE_INSTALLATION_NOTIF_ID,
                             notificationBuilder.setContentTitle(info.getStatus())
                                 .setContentText(String.valueOf(info.getProgress()) + "%")
+                                .setSubText(info.getEta())
                                 .setProgress(100, info.getProgress(), false)
                                 .build());
                     }
@@ -121,11 +123,11 @@ public class UpdateInstallerService extends Service {
         releaseWakeLock();
     }
 
-    private void startUpdate() {
+    private void startUpdate(boolean pipelined) {
         updateStarted = true;
         startForeground();
         acquireWakeLock();
-        repository.startUpdate();
+        repository.startUpdate(pipelined);
     }
 
     public void pauseUpdate() {
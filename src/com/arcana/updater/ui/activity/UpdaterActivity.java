@@ -26,6 +26,7 @@ import static android.provider.OpenableColumns.DISPLAY_NAME;
 import static android.view.HapticFeedbackConstants.KEYBOARD_PRESS;
 import static android.widget.Toast.LENGTH_SHORT;
 import static com.arcana.updater.util.Constants.ACION_START_UPDATE;
+import static com.arcana.updater.util.Constants.EXTRA_PIPELINED;
 import static com.arcana.updater.util.Constants.THEME_KEY;
 
 import android.app.AlertDialog;
@@ -58,6 +59,8 @@ import androidx.core.widget.NestedScrollView;
 import com.android.internal.util.arcana.KryptonUtils;
 import com.arcana.updater.model.data.BatteryMonitor;
 import com.arcana.updater.model.data.BuildInfo;
+import com.arcana.updater.model.data.NetworkMonitor;
+import com.arcana.updater.model.data.PackageStore;
 import com.arcana.updater.model.data.Response;
 import com.arcana.updater.model.data.ResponseCode;
 import com.arcana.updater.R;
@@ -68,6 +71,11 @@ import com.arcana.updater.util.NotificationHelper;
 import com.arcana.updater.util.Utils;
 import com.arcana.updater.UpdaterApplication;
 import com.arcana.updater.viewmodel.*;
+import com.arcana.updater.workers.PauseController;
+import com.arcana.updater.workers.RetryStats;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 import javax.inject.Inject;
 
@@ -88,13 +96,23 @@ public class UpdaterActivity extends AppCompatActivity implements VisibilityCont
     private AppViewModel viewModel;
     private NotificationHelper notificationHelper;
     private BatteryMonitor batteryMonitor;
+    private NetworkMonitor networkMonitor;
+    private RetryStats retryStats;
+    private PauseController pauseController;
+    private PackageStore packageStore;
     private ViewModelProvider provider;
     private AlertDialog copyingDialog;
 
     @Inject
-    void setDependencies(NotificationHelper helper, BatteryMonitor batteryMonitor) {
+    void setDependencies(NotificationHelper helper, BatteryMonitor batteryMonitor,
+            NetworkMonitor networkMonitor, RetryStats retryStats,
+            PauseController pauseController, PackageStore packageStore) {
         notificationHelper = helper;
         this.batteryMonitor = batteryMonitor;
+        this.networkMonitor = networkMonitor;
+        this.retryStats = retryStats;
+        this.pauseController = pauseController;
+        this.packageStore = packageStore;
     }
 
     @Override
@@ -154,6 +172,18 @@ public class UpdaterActivity extends AppCompatActivity implements VisibilityCont
         }
     }
 
+    // adb shell dumpsys activity com.arcana.updater
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (networkMonitor != null) {
+            networkMonitor.dump(prefix, writer);
+            writer.println(prefix + "RetryStats: " + retryStats);
+            writer.println(prefix + pauseController);
+            packageStore.dump(prefix, writer);
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.settings_menu, menu);
@@ -356,6 +386,10 @@ public class UpdaterActivity extends AppCompatActivity implements VisibilityCont
     public void startDownload(View v) {
         v.performHapticFeedback(KEYBOARD_PRESS);
         provider.get(DownloadViewModel.class).startDownload();
+        if (viewModel.isPipelinedInstallEnabled() && batteryMonitor.isBatteryOkay()) {
+            // Apply the update while the package is still downloading
+            startUpdateService(true);
+        }
     }
 
     public void localUpgrade(View v) {
@@ -372,8 +406,13 @@ public class UpdaterActivity extends AppCompatActivity implements VisibilityCont
             Toast.makeText(this, R.string.plug_in_charger, Toast.LENGTH_LONG).show();
             return;
         }
+        startUpdateService(false);
+    }
+
+    private void startUpdateService(boolean pipelined) {
         final Intent intent = new Intent(this, UpdateInstallerService.class);
         intent.setAction(ACION_START_UPDATE);
+        intent.putExtra(EXTRA_PIPELINED, pipelined);
         startServiceAsUser(intent, SYSTEM);
     }
 
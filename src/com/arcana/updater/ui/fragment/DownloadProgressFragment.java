@@ -107,7 +107,7 @@ public class DownloadProgressFragment extends Fragment implements VisibilityCont
         downloadStatus.setText(progressInfo.getStatus());
         progressBar.setProgress(progressInfo.getProgress());
         progressValue.setText(progressInfo.getProgress() + "%");
-        downloadSize.setText(progressInfo.getExtras());
+        downloadSize.setText(progressInfo.getDetails());
     }
 
     private void hideSelf(boolean hide) {
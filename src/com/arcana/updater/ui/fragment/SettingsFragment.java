@@ -16,7 +16,16 @@
 
 package com.arcana.updater.ui.fragment;
 
+import static com.arcana.updater.util.Constants.AUTO_DOWNLOAD_KEY;
+import static com.arcana.updater.util.Constants.BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY;
+import static com.arcana.updater.util.Constants.CELLULAR_CAP_KEY;
+import static com.arcana.updater.util.Constants.DOWNLOAD_CONNECTIONS_KEY;
+import static com.arcana.updater.util.Constants.DOWNLOAD_RATE_LIMIT_KEY;
+import static com.arcana.updater.util.Constants.NETWORK_POLICY_KEY;
+import static com.arcana.updater.util.Constants.PIPELINED_INSTALL_KEY;
 import static com.arcana.updater.util.Constants.REFRESH_INTERVAL_KEY;
+import static com.arcana.updater.util.Constants.SELECTIVE_DOWNLOAD_KEY;
+import static com.arcana.updater.util.Constants.STREAMING_INSTALL_KEY;
 import static com.arcana.updater.util.Constants.THEME_KEY;
 
 import android.app.AlertDialog;
@@ -29,16 +38,20 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SeekBarPreference;
+import androidx.preference.SwitchPreferenceCompat;
 
 import com.arcana.updater.R;
 import com.arcana.updater.viewmodel.AppViewModel;
 
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
 public class SettingsFragment extends PreferenceFragmentCompat {
     private static final VibrationEffect click = VibrationEffect.createPredefined(
         VibrationEffect.EFFECT_CLICK);
     private AppViewModel viewModel;
     private Vibrator vibrator;
-    private AlertDialog themePickerDialog;
+    private AlertDialog themePickerDialog, networkPolicyPickerDialog;
 
     @Override
     public void onCreatePreferences(Bundle bundle, String key) {
@@ -46,18 +59,53 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         final FragmentActivity activity = requireActivity();
         viewModel = new ViewModelProvider(activity).get(AppViewModel.class);
         vibrator = activity.getSystemService(Vibrator.class);
-        SeekBarPreference seekBar = findPreference(REFRESH_INTERVAL_KEY);
-        seekBar.setValue(viewModel.getRefreshInterval());
+        setupSeekBar(REFRESH_INTERVAL_KEY, viewModel.getRefreshInterval(),
+            viewModel::updateRefreshInterval);
+        setupSeekBar(DOWNLOAD_RATE_LIMIT_KEY, viewModel.getDownloadRateLimit(),
+            viewModel::updateDownloadRateLimit);
+        setupSeekBar(BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY,
+            viewModel.getBackgroundDownloadRateLimit(),
+            viewModel::updateBackgroundDownloadRateLimit);
+        setupSeekBar(CELLULAR_CAP_KEY, viewModel.getCellularCap(),
+            viewModel::updateCellularCap);
+        setupSeekBar(DOWNLOAD_CONNECTIONS_KEY, viewModel.getDownloadConnections(),
+            viewModel::updateDownloadConnections);
+        setupSwitch(AUTO_DOWNLOAD_KEY, viewModel.isAutoDownloadEnabled(),
+            viewModel::updateAutoDownload);
+        setupSwitch(STREAMING_INSTALL_KEY, viewModel.isStreamingInstallEnabled(),
+            viewModel::updateStreamingInstall);
+        setupSwitch(PIPELINED_INSTALL_KEY, viewModel.isPipelinedInstallEnabled(),
+            viewModel::updatePipelinedInstall);
+        setupSwitch(SELECTIVE_DOWNLOAD_KEY, viewModel.isSelectiveDownloadEnabled(),
+            viewModel::updateSelectiveDownload);
+        findPreference(THEME_KEY).setOnPreferenceClickListener(pref -> {
+            showPickerDialog();
+            return true;
+        });
+        findPreference(NETWORK_POLICY_KEY).setOnPreferenceClickListener(pref -> {
+            showNetworkPolicyPickerDialog();
+            return true;
+        });
+    }
+
+    private void setupSeekBar(String key, int value, IntConsumer listener) {
+        final SeekBarPreference seekBar = findPreference(key);
+        seekBar.setValue(value);
         seekBar.setUpdatesContinuously(true);
         seekBar.setOnPreferenceChangeListener((preference, newValue) -> {
             if (vibrator != null && vibrator.hasVibrator()) {
                 vibrator.vibrate(click);
             }
-            viewModel.updateRefreshInterval((Integer) newValue);
+            listener.accept((Integer) newValue);
             return true;
         });
-        findPreference(THEME_KEY).setOnPreferenceClickListener(pref -> {
-            showPickerDialog();
+    }
+
+    private void setupSwitch(String key, boolean checked, Consumer<Boolean> listener) {
+        final SwitchPreferenceCompat switchPreference = findPreference(key);
+        switchPreference.setChecked(checked);
+        switchPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            listener.accept((Boolean) newValue);
             return true;
         });
     }
@@ -75,4 +123,18 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         }
         themePickerDialog.show();
     }
+
+    private void showNetworkPolicyPickerDialog() {
+        if (networkPolicyPickerDialog == null) {
+            networkPolicyPickerDialog = new Builder(getActivity(), R.style.AlertDialogTheme)
+                .setTitle(R.string.network_policy_chooser_dialog_title)
+                .setSingleChoiceItems(R.array.network_policies, viewModel.getNetworkPolicy(),
+                        (dialog, which) -> {
+                            dialog.dismiss();
+                            viewModel.updateNetworkPolicy(which);
+                        })
+                .create();
+        }
+        networkPolicyPickerDialog.show();
+    }
 }
@@ -153,7 +153,7 @@ public class UpdateProgressFragment extends Fragment implements VisibilityContro
         updateStatus.setText(progressInfo.getStatus());
         progressBar.setProgress(progressInfo.getProgress());
         progressValue.setText(progressInfo.getProgress() + "%");
-        updateStep.setText(progressInfo.getExtras());
+        updateStep.setText(progressInfo.getDetails());
     }
 
     private void hideSelf(boolean hide) {
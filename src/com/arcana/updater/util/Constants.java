@@ -27,9 +27,15 @@ public class Constants {
     public static final String DOWNLOAD_STATUS = "download_status";
     public static final String DOWNLOADED_PERCENT = "downloaded_percent";
     public static final String DOWNLOADED_SIZE = "downloaded_size";
+    public static final String DOWNLOAD_SEGMENTS = "download_segments";
+    public static final String DOWNLOAD_VALIDATOR = "download_validator";
     public static final String ENTRY_DATE = "entry_date";
+    public static final String FAILED_INCREMENTAL = "failed_incremental";
     public static final String GLOBAL_STATUS = "global_status";
     public static final String LOCAL_UPGRADE_FILE = "local_upgrade_file";
+    public static final String NETWORK_USAGE = "network_usage";
+    public static final String PACKAGE_INDEX = "package_index";
+    public static final String SELECTIVE_FALLBACK = "selective_fallback";
 
     // Download / Update status
     public static final int BATTERY_LOW = 300;
@@ -46,6 +52,8 @@ public class Constants {
 
     // Update intent actions
     public static final String ACION_START_UPDATE = "com.arcana.updater.START_UPDATE";
+    // Boolean extra of ACION_START_UPDATE, true to apply the download in progress
+    public static final String EXTRA_PIPELINED = "com.arcana.updater.extra.PIPELINED";
 
     // 1 MB in bytes
     public static final int MB = 1048576;
@@ -53,4 +61,14 @@ public class Constants {
     // Preferences
     public static final String THEME_KEY = "theme_settings_preference";
     public static final String REFRESH_INTERVAL_KEY = "refresh_interval_preference";
+    public static final String DOWNLOAD_CONNECTIONS_KEY = "download_connections_preference";
+    public static final String DOWNLOAD_RATE_LIMIT_KEY = "download_rate_limit_preference";
+    public static final String BACKGROUND_DOWNLOAD_RATE_LIMIT_KEY =
+        "background_download_rate_limit_preference";
+    public static final String AUTO_DOWNLOAD_KEY = "auto_download_preference";
+    public static final String STREAMING_INSTALL_KEY = "streaming_install_preference";
+    public static final String PIPELINED_INSTALL_KEY = "pipelined_install_preference";
+    public static final String SELECTIVE_DOWNLOAD_KEY = "selective_download_preference";
+    public static final String NETWORK_POLICY_KEY = "network_policy_preference";
+    public static final String CELLULAR_CAP_KEY = "cellular_cap_preference";
 }
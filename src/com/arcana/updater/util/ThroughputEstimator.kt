@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.util
+
+import android.os.SystemClock
+
+import kotlin.math.exp
+
+/*
+ * Smoothed rate of a monotonic progress counter (bytes, or any other unit)
+ * as an exponentially weighted moving average over time, which makes the
+ * estimate follow real speed changes within a few seconds without jumping
+ * around on every sample. Only keeps primitive state, so it can be fed
+ * from hot paths without allocating.
+ */
+class ThroughputEstimator @JvmOverloads constructor(
+    private val timeConstant: Long = DEFAULT_TIME_CONSTANT, // millis
+) {
+    private var lastDone = -1L
+    private var lastTime = 0L
+    private var smoothedRate = 0.0
+    private var hasRate = false
+
+    // Units per second, 0 until there is a measurement
+    val rate: Long
+        get() = smoothedRate.toLong()
+
+    /*
+     * Record that @param done units are complete at @param now
+     * (elapsed realtime in millis). A counter going backwards, as
+     * happens when data is thrown away and fetched again, starts
+     * a new baseline but keeps the rate.
+     */
+    @JvmOverloads
+    @Synchronized
+    fun update(done: Long, now: Long = SystemClock.elapsedRealtime()) {
+        if (lastDone < 0 || done < lastDone) {
+            lastDone = done
+            lastTime = now
+            return
+        }
+        val elapsed = now - lastTime
+        if (elapsed < MIN_SAMPLE_INTERVAL) {
+            return
+        }
+        val sample = (done - lastDone) * 1000.0 / elapsed
+        if (hasRate) {
+            val alpha = 1 - exp(-elapsed.toDouble() / timeConstant)
+            smoothedRate += alpha * (sample - smoothedRate)
+        } else {
+            smoothedRate = sample
+            hasRate = true
+        }
+        lastDone = done
+        lastTime = now
+    }
+
+    // Seconds needed for @param remaining more units at the current rate, -1 if unknown
+    @Synchronized
+    fun getEta(remaining: Long): Long {
+        if (remaining <= 0) return 0
+        if (!hasRate || smoothedRate < 1) return -1
+        return (remaining / smoothedRate).toLong()
+    }
+
+    @Synchronized
+    fun reset() {
+        lastDone = -1
+        lastTime = 0
+        smoothedRate = 0.0
+        hasRate = false
+    }
+
+    companion object {
+        private const val DEFAULT_TIME_CONSTANT = 5000L // millis
+        private const val MIN_SAMPLE_INTERVAL = 200L // millis
+    }
+}
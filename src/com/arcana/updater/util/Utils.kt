@@ -16,17 +16,17 @@
 
 package com.arcana.updater.util
 
+import android.content.Context
 import android.os.Environment
 import android.os.SystemProperties
-import android.util.Log
+import android.text.format.DateUtils
+import android.text.format.Formatter
 
-import com.arcana.updater.util.Constants.MB
+import com.arcana.updater.R
+import com.arcana.updater.model.data.NetworkUsage
 
 import java.io.File
-import java.io.IOException
 import java.net.URL
-import java.security.MessageDigest
-import java.security.NoSuchAlgorithmException
 import java.text.SimpleDateFormat
 import java.util.Date
 
@@ -35,13 +35,13 @@ import kotlin.jvm.JvmStatic
 // TODO : remove all JvmStatic annotations once entire app is in kotlin
 class Utils private constructor() {
     companion object {
-        private const val TAG = "UpdaterUtils"
-
         // Build props
         private const val PROP_DEVICE = "ro.arcana.device"
         private const val PROP_VERSION = "ro.arcana.version"
         private const val PROP_DATE = "ro.arcana.build_date_utc"
 
+        private const val DETAILS_SEPARATOR = " • "
+
         // Date format (Ex: 12 June 2021, 11:59 AM)
         private val DATE_FORMAT = SimpleDateFormat("dd MMM yyyy, hh:mm a")
 
@@ -71,35 +71,46 @@ class Utils private constructor() {
         @JvmStatic
         fun getDownloadFile(fileName: String) = File(DOWNLOADS_DIR, fileName)
 
-        // Calculate md5 hash of the given file
+        // Human readable @param bytesPerSecond, null if nothing is moving
         @JvmStatic
-        fun computeMd5(file: File): String? {
-            val md5Digest: MessageDigest
-            try {
-                md5Digest = MessageDigest.getInstance("MD5")
-            } catch (e: NoSuchAlgorithmException) {
-                return null
-            }
-            // Files processed will be of GB order usually, so 1MB buffer will speed up the process
-            val buffer = ByteArray(MB)
-            var bytesRead: Int
-            try {
-                file.inputStream().use {
-                    bytesRead = it.read(buffer)
-                    while (bytesRead != -1) {
-                        md5Digest.update(buffer, 0, bytesRead)
-                        bytesRead = it.read(buffer)
-                    }
-                }
-                var builder = StringBuilder()
-                md5Digest.digest().forEach({
-                    builder.append(String.format("%02x", it))
-                })
-                return builder.toString()
-            } catch (e: IOException) {
-                Log.e(TAG, "IOException while computing md5 of file ${file.getAbsolutePath()}")
+        fun formatSpeed(context: Context, bytesPerSecond: Long): String? =
+            if (bytesPerSecond <= 0) null
+            else context.getString(R.string.transfer_speed,
+                Formatter.formatShortFileSize(context, bytesPerSecond))
+
+        // Human readable time left from @param seconds, null if unknown
+        @JvmStatic
+        fun formatEta(context: Context, seconds: Long): String? =
+            if (seconds < 0) null
+            else context.getString(R.string.time_left,
+                DateUtils.formatElapsedTime(seconds))
+
+        // Human readable bytes per network in @param usage, null if nothing was transferred
+        @JvmStatic
+        fun formatNetworkUsage(context: Context, usage: NetworkUsage): String? =
+            listOf(
+                R.string.network_usage_wifi to usage.wifi,
+                R.string.network_usage_cellular to usage.cellular,
+                R.string.network_usage_other to usage.other,
+            ).filter { it.second > 0 }
+                .map { context.getString(it.first,
+                    Formatter.formatShortFileSize(context, it.second)) }
+                .takeIf { it.isNotEmpty() }
+                ?.joinToString(DETAILS_SEPARATOR)
+
+        // Join the non null @param details into a single line
+        @JvmStatic
+        fun joinDetails(vararg details: String?) =
+            listOfNotNull(*details).joinToString(DETAILS_SEPARATOR)
+
+        // Lower case hex representation of @param bytes
+        @JvmStatic
+        fun toHexString(bytes: ByteArray): String {
+            val builder = StringBuilder(bytes.size * 2)
+            bytes.forEach {
+                builder.append(String.format("%02x", it))
             }
-            return null
+            return builder.toString()
         }
     }
 }
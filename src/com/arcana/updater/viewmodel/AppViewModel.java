@@ -107,6 +107,78 @@ public class AppViewModel extends AndroidViewModel {
         repository.updateRefreshInterval(days);
     }
 
+    public int getDownloadConnections() {
+        return repository.getDownloadConnections();
+    }
+
+    public void updateDownloadConnections(int connections) {
+        repository.updateDownloadConnections(connections);
+    }
+
+    public int getDownloadRateLimit() {
+        return repository.getDownloadRateLimit();
+    }
+
+    public void updateDownloadRateLimit(int mbps) {
+        repository.updateDownloadRateLimit(mbps);
+    }
+
+    public int getBackgroundDownloadRateLimit() {
+        return repository.getBackgroundDownloadRateLimit();
+    }
+
+    public void updateBackgroundDownloadRateLimit(int mbps) {
+        repository.updateBackgroundDownloadRateLimit(mbps);
+    }
+
+    public boolean isAutoDownloadEnabled() {
+        return repository.isAutoDownloadEnabled();
+    }
+
+    public void updateAutoDownload(boolean enabled) {
+        repository.updateAutoDownload(enabled);
+    }
+
+    public boolean isStreamingInstallEnabled() {
+        return repository.isStreamingInstallEnabled();
+    }
+
+    public void updateStreamingInstall(boolean enabled) {
+        repository.updateStreamingInstall(enabled);
+    }
+
+    public boolean isPipelinedInstallEnabled() {
+        return repository.isPipelinedInstallEnabled();
+    }
+
+    public void updatePipelinedInstall(boolean enabled) {
+        repository.updatePipelinedInstall(enabled);
+    }
+
+    public boolean isSelectiveDownloadEnabled() {
+        return repository.isSelectiveDownloadEnabled();
+    }
+
+    public void updateSelectiveDownload(boolean enabled) {
+        repository.updateSelectiveDownload(enabled);
+    }
+
+    public int getNetworkPolicy() {
+        return repository.getNetworkPolicy();
+    }
+
+    public void updateNetworkPolicy(int policy) {
+        repository.updateNetworkPolicy(policy);
+    }
+
+    public int getCellularCap() {
+        return repository.getCellularCap();
+    }
+
+    public void updateCellularCap(int mb) {
+        repository.updateCellularCap(mb);
+    }
+
     public void updateThemeFromDataStore() {
         switchThemeMode(getAppThemeMode());
     }
@@ -169,7 +241,8 @@ public class AppViewModel extends AndroidViewModel {
                 refreshButtonVisibility.setValue(statusUnknown);
                 localUpgradeButtonVisibility.setValue(statusUnknown);
                 downloadButtonVisibility.setValue(status == DOWNLOAD_PENDING);
-                updateButtonVisibility.setValue(status == UPDATE_PENDING);
+                updateButtonVisibility.setValue(status == UPDATE_PENDING ||
+                    (status == DOWNLOAD_PENDING && repository.isStreamingInstallEnabled()));
                 rebootButtonVisibility.setValue(status == REBOOT_PENDING);
             });
         localUpgradeFileName = LiveDataReactiveStreams.fromPublisher(
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/*
+ * Pool of direct ByteBuffer's used by the download path, so that
+ * the buffers are allocated once per process instead of once per
+ * download attempt and never touch the java heap. Buffers come in
+ * power of two size classes from MIN_BUF_SIZE to MAX_BUF_SIZE.
+ */
+@Singleton
+public class BufferPool {
+    static final int MIN_BUF_SIZE = 65536; // 64 KB
+    static final int BUF_SIZE = 262144; // 256 KB
+    static final int MAX_BUF_SIZE = 1048576; // 1 MB
+    private static final int MAX_POOLED = 8; // per size class
+
+    private final ArrayDeque<ByteBuffer>[] pools;
+
+    @Inject
+    @SuppressWarnings("unchecked")
+    public BufferPool() {
+        pools = new ArrayDeque[getSizeClass(MAX_BUF_SIZE) + 1];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ArrayDeque<>(MAX_POOLED);
+        }
+    }
+
+    // Returns a cleared direct buffer of BUF_SIZE capacity
+    ByteBuffer acquire() {
+        return acquire(BUF_SIZE);
+    }
+
+    /*
+     * Returns a cleared direct buffer with a capacity of @param size
+     * rounded up to a size class, clamped to [MIN_BUF_SIZE, MAX_BUF_SIZE]
+     */
+    synchronized ByteBuffer acquire(int size) {
+        final int sizeClass = getSizeClass(size);
+        final ByteBuffer buffer = pools[sizeClass].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(MIN_BUF_SIZE << sizeClass);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // Give back a buffer obtained from acquire()
+    synchronized void release(ByteBuffer buffer) {
+        final ArrayDeque<ByteBuffer> pool = pools[getSizeClass(buffer.capacity())];
+        if (pool.size() < MAX_POOLED) {
+            pool.push(buffer);
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        final int clamped = Math.max(MIN_BUF_SIZE, Math.min(size, MAX_BUF_SIZE));
+        return 32 - Integer.numberOfLeadingZeros((clamped - 1) / MIN_BUF_SIZE);
+    }
+}
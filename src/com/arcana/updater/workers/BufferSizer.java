@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import static com.arcana.updater.workers.BufferPool.BUF_SIZE;
+import static com.arcana.updater.workers.BufferPool.MAX_BUF_SIZE;
+import static com.arcana.updater.workers.BufferPool.MIN_BUF_SIZE;
+
+/*
+ * Picks the buffer size of a connection from what it observes. A buffer
+ * that fills up quickly from large reads is doubled to save write calls,
+ * one that takes long to fill (slow link) or to write out (slow storage)
+ * is halved so that progress, verification and memory use stay fine grained.
+ */
+final class BufferSizer {
+    private static final long TARGET_FILL_NANOS = 250_000_000L;
+    private static final long MAX_WRITE_NANOS = 50_000_000L;
+    private static final int READS_PER_BUFFER = 8;
+    private static final double ALPHA = 0.2; // Weight of the newest sample
+
+    private int size = BUF_SIZE;
+    private double avgReadSize, avgFillNanos, avgWriteNanos;
+
+    int getSize() {
+        return size;
+    }
+
+    void onRead(int bytesRead) {
+        avgReadSize = average(avgReadSize, bytesRead);
+    }
+
+    /*
+     * Called once a buffer of @param bytes took @param fillNanos to read
+     * and @param writeNanos to write. Partially filled buffers at the
+     * end of a segment are not representative and are ignored.
+     */
+    void onBufferDone(int bytes, long fillNanos, long writeNanos) {
+        if (bytes < size) {
+            return;
+        }
+        avgFillNanos = average(avgFillNanos, fillNanos);
+        avgWriteNanos = average(avgWriteNanos, writeNanos);
+        if (avgWriteNanos > MAX_WRITE_NANOS || avgFillNanos > 2 * TARGET_FILL_NANOS) {
+            resize(size / 2);
+        } else if (avgFillNanos < TARGET_FILL_NANOS / 2 &&
+                avgReadSize * READS_PER_BUFFER >= size) {
+            resize(size * 2);
+        }
+    }
+
+    private void resize(int newSize) {
+        newSize = Math.max(MIN_BUF_SIZE, Math.min(newSize, MAX_BUF_SIZE));
+        if (newSize != size) {
+            size = newSize;
+            // Let the averages settle at the new size before deciding again
+            avgFillNanos = avgWriteNanos = 0;
+        }
+    }
+
+    private static double average(double avg, double sample) {
+        return avg == 0 ? sample : avg + ALPHA * (sample - avg);
+    }
+}
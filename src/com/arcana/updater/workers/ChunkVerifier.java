@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import com.arcana.updater.model.data.DownloadSegment;
+import com.arcana.updater.model.retrofit.data.ChunkManifest;
+import com.arcana.updater.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Verifies downloaded data against the per chunk hashes of a ChunkManifest.
+ * Segments are aligned to chunks, so every segment hashes its own chunks
+ * inline through a Hasher as they are written.
+ */
+final class ChunkVerifier {
+    private final ChunkManifest manifest;
+    private final long fileSize;
+    private final BufferPool bufferPool;
+
+    ChunkVerifier(ChunkManifest manifest, long fileSize, BufferPool bufferPool) {
+        this.manifest = manifest;
+        this.fileSize = fileSize;
+        this.bufferPool = bufferPool;
+    }
+
+    long getChunkSize() {
+        return manifest.getChunkSize();
+    }
+
+    long getChunkStart(int chunk) {
+        return chunk * manifest.getChunkSize();
+    }
+
+    // Returns true if every segment starts at a chunk boundary
+    boolean isAligned(List<DownloadSegment> segments) {
+        return segments.stream().allMatch(
+            segment -> segment.getStart() % manifest.getChunkSize() == 0);
+    }
+
+    /*
+     * Create a Hasher for @param segment, hashing the already written part
+     * of the tail chunk from @param channel. If the offset is on a chunk
+     * boundary the last complete chunk is verified again, and the segment
+     * is rolled back to it if it turns out to be corrupt.
+     */
+    Hasher newHasher(DownloadSegment segment, FileChannel channel) throws IOException {
+        final long offset = segment.getOffset();
+        final long chunkSize = manifest.getChunkSize();
+        long from = (offset / chunkSize) * chunkSize;
+        if (from == offset && offset > segment.getStart()) {
+            from -= chunkSize;
+        }
+        final Hasher hasher = new Hasher(from);
+        if (from == offset) {
+            return hasher;
+        }
+        final ByteBuffer buffer = bufferPool.acquire();
+        try {
+            long position = from;
+            while (position < offset) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), offset - position));
+                final int bytesRead = channel.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                buffer.flip();
+                if (hasher.update(buffer) != -1) {
+                    segment.setOffset(from);
+                    return new Hasher(from);
+                }
+                position += bytesRead;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return hasher;
+    }
+
+    // Returns the indexes of all the chunks of @param file that don't match the manifest
+    List<Integer> findCorruptChunks(File file) throws IOException {
+        final List<Integer> corrupt = new ArrayList<>();
+        final ByteBuffer buffer = bufferPool.acquire();
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            final Hasher hasher = new Hasher(0);
+            long position = 0;
+            while (position < fileSize) {
+                buffer.clear();
+                final int bytesRead = channel.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                buffer.flip();
+                int chunk;
+                while ((chunk = hasher.update(buffer)) != -1) {
+                    corrupt.add(chunk);
+                }
+                position += bytesRead;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return corrupt;
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(manifest.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported chunk hash algorithm " +
+                manifest.getAlgorithm(), e);
+        }
+    }
+
+    /*
+     * Hashes consecutive data starting at a chunk boundary and
+     * checks every chunk as soon as its last byte is seen.
+     */
+    final class Hasher {
+        private final MessageDigest digest;
+        private int chunk;
+        private long position, chunkEnd;
+
+        private Hasher(long start) {
+            digest = newDigest();
+            position = start;
+            chunk = (int) (start / manifest.getChunkSize());
+            chunkEnd = Math.min(getChunkStart(chunk + 1), fileSize);
+        }
+
+        /*
+         * Hash the remaining bytes of @param data, which has to continue
+         * exactly where the last call stopped. Returns the index of a chunk
+         * that turned out to be corrupt, in which case the data after
+         * that chunk is not consumed yet, otherwise -1.
+         */
+        int update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                final int size = (int) Math.min(data.remaining(), chunkEnd - position);
+                final ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + size);
+                digest.update(slice);
+                data.position(data.position() + size);
+                position += size;
+                if (position == chunkEnd) {
+                    final boolean valid = Utils.toHexString(digest.digest())
+                        .equalsIgnoreCase(manifest.getHashes().get(chunk));
+                    final int completed = chunk++;
+                    chunkEnd = Math.min(getChunkStart(chunk + 1), fileSize);
+                    if (!valid) {
+                        return completed;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        // Start over from @param start, which must be a chunk boundary
+        void reset(long start) {
+            digest.reset();
+            position = start;
+            chunk = (int) (start / manifest.getChunkSize());
+            chunkEnd = Math.min(getChunkStart(chunk + 1), fileSize);
+        }
+    }
+}
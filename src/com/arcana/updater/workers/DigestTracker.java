@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import android.util.Log;
+
+import com.arcana.updater.model.data.DownloadSegment;
+import com.arcana.updater.util.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/*
+ * Computes the md5 of a file while it is being downloaded. Data written
+ * exactly at the end of the hashed prefix is hashed inline by the writer,
+ * anything else (segments written ahead of the prefix) is read back
+ * from the file by catchUp() once the prefix reaches it.
+ */
+final class DigestTracker implements Closeable {
+    private static final String TAG = "DigestTracker";
+
+    private final MessageDigest digest;
+    private final FileChannel channel;
+    private final BufferPool bufferPool;
+    private volatile long hashedOffset;
+
+    /*
+     * @param digest must contain the state for the first
+     * @param offset bytes of @param file
+     */
+    DigestTracker(File file, MessageDigest digest, long offset,
+            BufferPool bufferPool) throws IOException {
+        this.digest = digest;
+        this.bufferPool = bufferPool;
+        hashedOffset = offset;
+        channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    long getHashedOffset() {
+        return hashedOffset;
+    }
+
+    /*
+     * Called by writers once the remaining bytes of @param data have
+     * been written at @param position of the file.
+     */
+    void onWritten(long position, ByteBuffer data) {
+        if (position != hashedOffset) {
+            return;
+        }
+        synchronized (this) {
+            if (position == hashedOffset) {
+                final int size = data.remaining();
+                digest.update(data);
+                hashedOffset += size;
+            }
+        }
+    }
+
+    /*
+     * Hash at most @param maxBytes of data that is already written
+     * according to @param segments but wasn't hashed inline.
+     */
+    synchronized void catchUp(List<DownloadSegment> segments, long maxBytes) throws IOException {
+        long budget = maxBytes;
+        for (DownloadSegment segment : segments) {
+            if (segment.getEnd() <= hashedOffset) {
+                continue;
+            }
+            final long target = Math.min(segment.getOffset(), hashedOffset + budget);
+            if (target > hashedOffset) {
+                budget -= target - hashedOffset;
+                hashRange(target);
+            }
+            if (hashedOffset < segment.getEnd()) {
+                break;
+            }
+        }
+    }
+
+    // Start over from the beginning of the file
+    synchronized void reset() {
+        digest.reset();
+        hashedOffset = 0;
+    }
+
+    /*
+     * Data from @param position onwards is going to be rewritten,
+     * since a digest can't be rewound anything hashed beyond it means
+     * starting over (the prefix is rehashed by catchUp).
+     */
+    synchronized void invalidateFrom(long position) {
+        if (hashedOffset > position) {
+            reset();
+        }
+    }
+
+    // Copy of the digest state for the current hashed prefix, or null if unsupported
+    synchronized MessageDigest checkpoint() {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            Log.w(TAG, "Digest can't be checkpointed", e);
+            return null;
+        }
+    }
+
+    // Hex md5 of the hashed prefix, tracker can't be used after this
+    synchronized String finish() {
+        return Utils.toHexString(digest.digest());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void hashRange(long end) throws IOException {
+        final ByteBuffer buffer = bufferPool.acquire();
+        try {
+            while (hashedOffset < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - hashedOffset));
+                final int bytesRead = channel.read(buffer, hashedOffset);
+                if (bytesRead == -1) {
+                    throw new IOException("Unexpected end of file at " + hashedOffset);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                hashedOffset += bytesRead;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -18,14 +18,19 @@ package com.arcana.updater.workers;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.arcana.updater.util.Constants.UPDATE_PENDING;
+import static com.arcana.updater.util.Constants.UPDATING;
 import static com.arcana.updater.util.Constants.DOWNLOADING;
 import static com.arcana.updater.util.Constants.FINISHED;
 import static com.arcana.updater.util.Constants.FAILED;
+import static com.arcana.updater.util.Constants.PAUSED;
+import static com.arcana.updater.util.Constants.MB;
 
 import android.content.Context;
+import android.net.Uri;
 import android.os.FileUtils;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
@@ -36,27 +41,73 @@ import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
 import com.arcana.updater.model.data.BuildInfo;
+import com.arcana.updater.model.data.ChunkManifestStore;
+import com.arcana.updater.model.data.ContentValidator;
 import com.arcana.updater.model.data.DataStore;
-import com.arcana.updater.model.data.DownloadStatus;
+import com.arcana.updater.model.data.DigestCheckpoint;
+import com.arcana.updater.model.data.DownloadSegment;
+import com.arcana.updater.model.data.GithubApiHelper;
+import com.arcana.updater.model.data.NetworkMonitor;
+import com.arcana.updater.model.data.NetworkUsage;
 import com.arcana.updater.model.data.OTAFileManager;
+import com.arcana.updater.model.data.PackageStore;
+import com.arcana.updater.model.data.PayloadInfoFactory;
+import com.arcana.updater.model.data.PreflightChecker;
+import com.arcana.updater.model.data.RemoteZipReader;
+import com.arcana.updater.model.retrofit.data.ChunkManifest;
 import com.arcana.updater.R;
 import com.arcana.updater.util.NotificationHelper;
+import com.arcana.updater.util.ThroughputEstimator;
 import com.arcana.updater.util.Utils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
-import javax.net.ssl.HttpsURLConnection;
+import kotlin.ranges.LongRange;
+
+import okhttp3.OkHttpClient;
 
 public class DownloadWorker extends Worker {
+    // Input data key for the number of parallel connections
+    public static final String CONNECTIONS = "connections";
+    // Input data key, true if the download was not started by the user
+    public static final String BACKGROUND = "background";
+    // Input data key, true if the update is applied while downloading
+    public static final String PIPELINED = "pipelined";
+    // Input data key, true to fetch only the parts of the package needed to apply it
+    public static final String SELECTIVE = "selective";
+    // Progress data key for the effective download speed in bytes per second
+    public static final String THROUGHPUT = "throughput";
+
     private static final String TAG = "DownloadWorker";
     private static final int UPDATE_DOWNLOAD_NOTIF_ID = 1002;
-    private static final int BUF_SIZE = 8192; // 8 KB
+    private static final long PROGRESS_INTERVAL = 500; // millis
+    // Max time the speed and time left in the notification may lag behind
+    private static final long NOTIFICATION_INTERVAL = 5000; // millis
+    private static final int MAX_IMMEDIATE_RETRIES = 3;
+    private static final int MAX_URL_REFRESHES = 5;
+    private static final long MBPS_TO_BYTES = 125000; // megabits to bytes
+    // Max data to read back for the digest per progress update
+    private static final long DIGEST_CATCH_UP_BYTES = 64L * MB;
+    /*
+     * Size of the segments of a pipelined download, which are fetched
+     * (mostly) in order so that the data is there when update_engine needs it
+     */
+    private static final long PIPELINE_SEGMENT_SIZE = 32L * MB;
     private final Context context;
     private final OTAFileManager ofm;
     private final Handler handler;
@@ -64,17 +115,67 @@ public class DownloadWorker extends Worker {
     private final NotificationHelper helper;
     private final NotificationCompat.Builder notificationBuilder;
     private final DataStore dataStore;
-    private int currPercent;
-    private long currSize, totalSize;
+    private final BufferPool bufferPool;
+    private final ChunkManifestStore chunkManifestStore;
+    private final OkHttpClient client;
+    private final RetryStats retryStats;
+    private final PartialFileServer partialFileServer;
+    private final PreflightChecker preflightChecker;
+    private final NetworkMonitor networkMonitor;
+    private final PauseController pauseController;
+    private final GithubApiHelper githubApiHelper;
+    private final PackageStore packageStore;
+    private final StoragePlanner storagePlanner;
+    private final ThroughputEstimator throughputEstimator;
+    private ProgressCheckpointer checkpointer;
+    private RateLimiter rateLimiter;
+    private ContentValidator validator;
+    private Failure failure;
+    // Urls of the package, replaced with fresh ones when signed urls expire
+    private String url;
+    private String[] mirrorUrls;
+    private final Map<String, String> refreshedUrls = new HashMap<>(); // expired to fresh
+    // Bytes transferred per network, for this download across all attempts
+    private NetworkUsage networkUsage;
+    // File the download is written to, flushed before every checkpoint
+    private File partialFile;
+    /*
+     * Segments of the last checkpoint taken by this worker. Later attempts
+     * continue from these rather than reading back a checkpoint that may
+     * not be committed yet, or was dropped since flushing failed.
+     */
+    private List<DownloadSegment> lastCheckpoint;
+    private boolean background, pipelined, selective, waitingForNetwork;
+    // Transfers are parked by the PauseController, or gave up waiting for a resume
+    private boolean paused, pauseExpired, firstByteReported;
+    private int connections, currPercent, networkChanges, urlRefreshes;
+    private long currSize, currSpeed, totalSize, lastNotificationTime, accountedSize;
 
     public DownloadWorker(Context context, WorkerParameters parameters,
             NotificationHelper helper, OTAFileManager ofm,
-            DataStore dataStore) {
+            DataStore dataStore, BufferPool bufferPool,
+            ChunkManifestStore chunkManifestStore, OkHttpClient client,
+            RetryStats retryStats, PartialFileServer partialFileServer,
+            PreflightChecker preflightChecker, NetworkMonitor networkMonitor,
+            PauseController pauseController, GithubApiHelper githubApiHelper,
+            PackageStore packageStore) {
         super(context, parameters);
         this.context = context;
         this.helper = helper;
         this.ofm = ofm;
         this.dataStore = dataStore;
+        this.bufferPool = bufferPool;
+        this.chunkManifestStore = chunkManifestStore;
+        this.client = client;
+        this.retryStats = retryStats;
+        this.partialFileServer = partialFileServer;
+        this.preflightChecker = preflightChecker;
+        this.networkMonitor = networkMonitor;
+        this.pauseController = pauseController;
+        this.githubApiHelper = githubApiHelper;
+        this.packageStore = packageStore;
+        storagePlanner = new StoragePlanner(ofm, context.getExternalCacheDir());
+        throughputEstimator = new ThroughputEstimator();
         thread = new HandlerThread(TAG, THREAD_PRIORITY_BACKGROUND);
         thread.start();
         handler = new Handler(thread.getLooper());
@@ -89,11 +190,103 @@ public class DownloadWorker extends Worker {
     public Result doWork() {
         final Data inputData = getInputData();
         totalSize = inputData.getLong(BuildInfo.FILE_SIZE, 0);
-        int exitCode = download(inputData.getString(BuildInfo.URL),
-            inputData.getString(BuildInfo.FILE_NAME), inputData.getString(BuildInfo.MD5));
+        connections = inputData.getInt(CONNECTIONS, 1);
+        background = inputData.getBoolean(BACKGROUND, false);
+        pipelined = inputData.getBoolean(PIPELINED, false);
+        selective = inputData.getBoolean(SELECTIVE, false) && !dataStore.isSelectiveFallback();
+        networkUsage = dataStore.getNetworkUsage();
+        final String md5 = inputData.getString(BuildInfo.MD5);
+        url = inputData.getString(BuildInfo.URL);
+        mirrorUrls = inputData.getStringArray(BuildInfo.MIRRORS);
+        final BuildInfo buildInfo = dataStore.getBuildInfo();
+        if (buildInfo != null && buildInfo.getMd5().equals(md5)) {
+            // Urls may have been refreshed since the request was built
+            url = buildInfo.getUrl();
+            mirrorUrls = buildInfo.getMirrors().toArray(new String[0]);
+        }
+        if (dataStore.getPersistedDownloadStatusCode() == PAUSED) {
+            // Paused in a process that is gone, resuming enqueues a new request
+            Log.i(TAG, "Download is paused, not resuming it");
+            dataStore.updateDownloadId(null);
+            thread.quitSafely();
+            return Result.success();
+        }
+        // Nothing to download if a verified copy is on the device already
+        int exitCode = restoreFromStore(md5, inputData.getString(BuildInfo.FILE_NAME));
+        if (exitCode == 0 && !background) {
+            // Background downloads continue as normal ones after a pause
+            pauseController.attach(getId());
+        }
+        final RetryPolicy retryPolicy = new RetryPolicy();
+        int immediateRetries = 0;
+        while (exitCode == 0) {
+            failure = null;
+            waitingForNetwork = false;
+            exitCode = download(url, mirrorUrls, inputData.getString(BuildInfo.FILE_NAME), md5);
+            if (exitCode == 0 && pauseController.isPaused()) {
+                // Nothing left to hold on to, resuming enqueues a new request
+                exitCode = 2;
+                break;
+            }
+            if (exitCode == 0 && waitingForNetwork) {
+                // Resume from the checkpoint as soon as the policy allows it
+                if (!awaitNetwork()) {
+                    exitCode = 2;
+                    break;
+                }
+                continue;
+            }
+            if (exitCode != 0) {
+                break;
+            }
+            if (failure == null) {
+                // Nothing failed, just more to do (repair, restart)
+                if (++immediateRetries > MAX_IMMEDIATE_RETRIES) {
+                    break;
+                }
+                continue;
+            }
+            retryStats.onFailure(failure.failureClass);
+            Log.w(TAG, "Attempt failed with " + failure.failureClass + ", " + retryStats,
+                failure.exception);
+            if (failure.failureClass == FailureClass.EXPIRED_URL && !refreshUrls(md5)) {
+                helper.notifyOrToast(R.string.download_failed,
+                    R.string.download_rejected, handler);
+                exitCode = -1;
+                break;
+            }
+            if (!failure.failureClass.isRetryable()) {
+                helper.notifyOrToast(R.string.download_failed,
+                    failure.failureClass == FailureClass.LOCAL_STORAGE ?
+                        R.string.storage_write_failed : R.string.download_rejected, handler);
+                exitCode = -1;
+                break;
+            }
+            if (failure.failureClass == FailureClass.TRANSIENT_NETWORK &&
+                    !networkMonitor.isTransferAllowed(networkUsage)) {
+                // The network is gone rather than flaky, backing off won't help
+                if (!awaitNetwork()) {
+                    exitCode = 2;
+                    break;
+                }
+                continue;
+            }
+            final long delay = retryPolicy.nextDelay(failure.failureClass,
+                failure.exception instanceof HttpStatusException ?
+                    ((HttpStatusException) failure.exception).getRetryAfter() : 0);
+            if (delay < 0) {
+                break; // Leave it to WorkManager's backoff
+            }
+            if (!sleepUnlessStopped(delay)) {
+                exitCode = 2;
+                break;
+            }
+        }
+        pauseController.detach(getId());
         final Result result;
         switch (exitCode) {
             case -1:
+                partialFileServer.onFailed();
                 updateStatusAsync(FAILED);
                 result = Result.failure();
                 break;
@@ -114,85 +307,214 @@ public class DownloadWorker extends Worker {
         return result;
     }
 
+    // Sleep for @param millis, returns false if the work was stopped meanwhile
+    private boolean sleepUnlessStopped(long millis) {
+        final long end = SystemClock.elapsedRealtime() + millis;
+        long remaining;
+        while (!isStopped() && (remaining = end - SystemClock.elapsedRealtime()) > 0) {
+            SystemClock.sleep(Math.min(remaining, PROGRESS_INTERVAL));
+        }
+        return !isStopped();
+    }
+
+    /*
+     * Wait until the network policy allows transferring data, which
+     * is shown instead of the speed meanwhile. Returns false if the
+     * work was stopped before that.
+     */
+    private boolean awaitNetwork() {
+        Log.i(TAG, "Waiting for an allowed network, transport " +
+            networkMonitor.getTransport() + ", " + networkUsage);
+        final int percent = (int) ((currSize*100)/totalSize);
+        notificationBuilder.setSubText(context.getString(R.string.waiting_for_network));
+        setForegroundAsync(getForegroundInfo(percent, false));
+        updateProgressAsync(currSize, percent, 0, -1);
+        while (!networkMonitor.isTransferAllowed(networkUsage)) {
+            if (!sleepUnlessStopped(PROGRESS_INTERVAL)) {
+                return false;
+            }
+        }
+        lastNotificationTime = 0; // Replace the waiting text with the next update
+        return true;
+    }
+
+    /*
+     * Fetch fresh urls of the package with @param md5, for when the signed
+     * ones expired. The package has to be the same one, checked by md5 and
+     * size, so that the data written so far stays valid and the download
+     * continues from its segments. Returns false if the package isn't
+     * published anymore or its urls didn't change.
+     */
+    private boolean refreshUrls(String md5) {
+        if (++urlRefreshes > MAX_URL_REFRESHES) {
+            Log.e(TAG, "Urls keep getting rejected, giving up");
+            return false;
+        }
+        final List<String> freshUrls;
+        try {
+            freshUrls = githubApiHelper.getPackageUrls(Utils.getDevice(), md5, totalSize);
+        } catch (IOException e) {
+            Log.w(TAG, "Fetching build info failed, retrying with the same urls", e);
+            return true;
+        }
+        if (freshUrls == null) {
+            Log.e(TAG, "Package " + md5 + " is not published anymore");
+            return false;
+        }
+        final String freshUrl = freshUrls.get(0);
+        final List<String> freshMirrorList = freshUrls.subList(1, freshUrls.size());
+        final String[] freshMirrors = freshMirrorList.toArray(new String[0]);
+        if (freshUrl.equals(url) &&
+                Arrays.equals(freshMirrors, mirrorUrls == null ? new String[0] : mirrorUrls)) {
+            Log.e(TAG, "Urls were rejected but didn't change");
+            return false;
+        }
+        Log.i(TAG, "Refreshed expired urls of " + md5);
+        refreshedUrls.put(url, freshUrl);
+        for (int i = 0; mirrorUrls != null && i < Math.min(mirrorUrls.length,
+                freshMirrors.length); i++) {
+            refreshedUrls.put(mirrorUrls[i], freshMirrors[i]);
+        }
+        validator = rebindValidator(validator);
+        url = freshUrl;
+        mirrorUrls = freshMirrors;
+        final BuildInfo stored = dataStore.getBuildInfo();
+        if (stored != null && stored.getMd5().equals(md5)) {
+            // For the requests of later resumes
+            dataStore.updateBuildInfo(stored.withUrls(freshUrl, new ArrayList<>(freshMirrorList)));
+        }
+        return true;
+    }
+
+    /*
+     * Move @param validator of an expired url over to its fresh one. Validators
+     * describe the content rather than the signature of the url, so the data
+     * written so far is still checked against them.
+     */
+    private ContentValidator rebindValidator(ContentValidator validator) {
+        if (validator == null) {
+            return null;
+        }
+        String validatorUrl = validator.getUrl();
+        while (refreshedUrls.containsKey(validatorUrl)) {
+            validatorUrl = refreshedUrls.get(validatorUrl);
+        }
+        return new ContentValidator(validatorUrl, validator.getValue());
+    }
+
+    // Record @param e as the reason of this attempt's failure, returns the retry exit code
+    private int retryAfter(IOException e) {
+        failure = new Failure(FailureClass.of(e), e);
+        return 0;
+    }
+
     /* return value:
      *   -1 for failure
      *    0 for retry
      *    1 for success
      *    2 if download was stopped (could be pause, cancel, or constraints not met)
      */
-    private int download(String urlString, String fileName, String md5) {
+    private int download(String urlString, String[] mirrorStrings,
+            String fileName, String md5) {
         notificationBuilder.setContentText(fileName);
         setForegroundAsync(getForegroundInfo(0, true));
-        final File file = new File(context.getExternalCacheDir(), fileName);
-        long startByte = 0;
-        boolean append = file.isFile();
-        if (append) {
-            currSize = file.length();
-            final DownloadStatus downloadStatus = dataStore.getDownloadStatus();
-            if (downloadStatus == null ||
-                    downloadStatus.getDownloadedSize() != currSize) {
-                currSize = 0;
-                append = false;
-            } else {
-                startByte += currSize;
-            }
-        }
-        URL url;
+        // Written straight into the ota dir so that finishing is just a rename
+        final File file = ofm.getPartialFile(fileName);
+        partialFile = file;
+        final File replica = Utils.getDownloadFile(fileName);
+        final List<URL> urls = new ArrayList<>();
         try {
-            url = new URL(urlString);
+            urls.add(new URL(urlString));
         } catch (MalformedURLException e) {
             Log.e(TAG, "Malformed url", e);
             helper.notifyOrToast(R.string.download_failed,
                 R.string.invalid_url, handler);
             return -1;
         }
-        HttpsURLConnection connection;
-        try {
-            connection = (HttpsURLConnection) url.openConnection();
-        } catch (IOException e) {
-            Log.d(TAG, "IOException when opening connection from url", e);
+        if (mirrorStrings != null) {
+            for (String mirror : mirrorStrings) {
+                try {
+                    urls.add(new URL(mirror));
+                } catch (MalformedURLException e) {
+                    Log.w(TAG, "Skipping malformed mirror " + mirror, e);
+                }
+            }
+        }
+        final MirrorSelector mirrors = new MirrorSelector(client, urls, totalSize);
+        final ChunkManifest chunkManifest = chunkManifestStore.get(md5);
+        final ChunkVerifier chunkVerifier = chunkManifest != null &&
+            chunkManifest.isValidFor(totalSize) ?
+                new ChunkVerifier(chunkManifest, totalSize, bufferPool) : null;
+        List<DownloadSegment> segments = restoreSegments(file);
+        if (!networkMonitor.isTransferAllowed(networkUsage)) {
+            waitingForNetwork = true;
             return 0;
         }
-        if (append) {
-            connection.setRequestProperty("Range", String.format("bytes=%d-", startByte));
+        if (segments == null || (chunkVerifier != null && !chunkVerifier.isAligned(segments))) {
+            final RemoteZipReader zipReader = new RemoteZipReader(client, urlString);
+            final PreflightChecker.Result preflight = checkPackage(zipReader);
+            if (preflight != PreflightChecker.Result.OK) {
+                Log.e(TAG, "Package rejected before download, " + preflight);
+                helper.notifyOrToast(R.string.download_failed, preflight.getMessage(), handler);
+                return -1;
+            }
+            try {
+                segments = planSegments(zipReader, chunkVerifier);
+            } catch (IOException e) {
+                return retryAfter(e);
+            }
+            currSize = DownloadSegment.getDownloadedSize(segments);
+            validator = null;
+            checkpointAsync(segments, true);
+        }
+        try {
+            if (selective) {
+                storagePlanner.allocateSparse(file, totalSize, segments);
+            } else {
+                storagePlanner.allocate(file, totalSize);
+            }
+        } catch (StorageException e) {
+            return retryAfter(e);
         }
+        checkpointer = new ProgressCheckpointer(currSize);
+        rateLimiter = new RateLimiter(getRateLimit());
         updateStatusAsync(DOWNLOADING);
+        mirrors.probe();
         // Download starts here
-        try (FileOutputStream outStream = new FileOutputStream(file, append);
-                InputStream inStream = connection.getInputStream()) {
-            final byte[] buffer = new byte[BUF_SIZE];
-            int bytesRead = 0;
-            while (!isStopped() && (bytesRead = inStream.read(buffer)) != -1) {
-                outStream.write(buffer, 0, bytesRead);
-                currSize += bytesRead;
-                int tmp = (int) ((currSize*100)/totalSize);
-                if (tmp > currPercent) {
-                    currPercent = tmp;
-                    setForegroundAsync(getForegroundInfo(currPercent, false)); // Update notification
-                }
-                updateProgressAsync(currSize, currPercent); // Update sharedPrefs
+        final String computedMd5;
+        try (DigestTracker digestTracker = restoreDigestTracker(file, md5, segments)) {
+            final int exitCode = downloadSegments(mirrors, file, segments,
+                digestTracker, chunkVerifier);
+            if (exitCode != 1) {
+                checkpointDigest(digestTracker, md5);
+                return exitCode;
             }
-            if (isStopped()) {
-                return 2;
+            if (selective) {
+                return finishSelective(file);
             }
+            // Only whatever was written ahead of the inline hashed prefix is read back
+            digestTracker.catchUp(segments, Long.MAX_VALUE);
+            computedMd5 = digestTracker.finish();
         } catch (IOException e) {
-            Log.d(TAG, "IOException when downloading content", e);
-            return 0;
+            // Reading back is not writing, the disk isn't full and this is worth a retry
+            Log.e(TAG, "IOException when computing md5", e);
+            return retryAfter(e);
         }
         // Check if download is actually over
         if (currSize == totalSize) {
-            if (Utils.computeMd5(file).equals(md5)) {
-                if (copyFile(file, fileName)) {
-                    file.delete();
-                    helper.onlyNotify(R.string.download_finished, R.string.click_to_update);
-                    // Mark as download finished and an update installation is pending
-                    dataStore.setGlobalStatus(UPDATE_PENDING);
-                    return 1;
-                } else {
-                    helper.notifyOrToast(R.string.download_failed,
-                        R.string.copy_failed, handler);
-                    return -1;
+            if (computedMd5.equals(md5)) {
+                final int exitCode = finalizeDownload(file);
+                if (exitCode == 1) {
+                    // Keep track of the verified copies, to reuse them instead of downloading again
+                    packageStore.put(md5, totalSize, ofm.getOTAFile());
+                    // Update can be installed already, the copy in Downloads is just a spare
+                    updateStatusAsync(FINISHED);
+                    replicate(ofm.getOTAFile(), replica, md5);
                 }
+                return exitCode;
+            }
+            if (chunkVerifier != null && repairChunks(file, chunkVerifier)) {
+                return 0; // Retry download of the corrupt chunks
             } else {
                 helper.notifyOrToast(R.string.download_failed,
                     R.string.md5_check_failed, handler);
@@ -203,12 +525,558 @@ public class DownloadWorker extends Worker {
         }
     }
 
+    /*
+     * Check that the package read by @param zipReader can be applied
+     * before any of it is downloaded. If it can't be checked, the
+     * download goes ahead and update_engine checks it when applying.
+     */
+    private PreflightChecker.Result checkPackage(RemoteZipReader zipReader) {
+        try {
+            return preflightChecker.check(zipReader);
+        } catch (IOException e) {
+            Log.w(TAG, "Preflight check failed, continuing without it", e);
+            return PreflightChecker.Result.OK;
+        }
+    }
+
+    /*
+     * Segments for a new download of the package read by @param zipReader.
+     * A selective download only covers the parts update_engine reads,
+     * located from the remote central directory, and everything else is
+     * left as a hole in the file. Falls back to the whole package if the
+     * needed entries aren't there.
+     */
+    private List<DownloadSegment> planSegments(RemoteZipReader zipReader,
+            ChunkVerifier chunkVerifier) throws IOException {
+        final long alignment = getAlignment(chunkVerifier);
+        if (selective) {
+            final List<LongRange> ranges = zipReader.findRanges(PayloadInfoFactory.PACKAGE_ENTRIES);
+            if (ranges != null) {
+                final List<DownloadSegment> segments = DownloadSegment.forRanges(totalSize,
+                    ranges, pipelined ? PIPELINE_SEGMENT_SIZE :
+                        (totalSize + connections - 1) / connections, alignment);
+                Log.i(TAG, "Selective download of " + DownloadSegment.getRemainingSize(segments) +
+                    " out of " + totalSize + " bytes");
+                return segments;
+            }
+            Log.w(TAG, "Package is missing entries, downloading all of it");
+        }
+        // Connections take the segments in order, more of them means a more sequential download
+        final int segmentCount = pipelined ?
+            Math.max(connections, (int) (totalSize / PIPELINE_SEGMENT_SIZE)) : connections;
+        return DownloadSegment.split(totalSize, segmentCount, alignment);
+    }
+
+    // Segment boundaries have to be on the chunks of @param chunkVerifier, if there is one
+    private static long getAlignment(ChunkVerifier chunkVerifier) {
+        return chunkVerifier == null ? 1 : chunkVerifier.getChunkSize();
+    }
+
+    /*
+     * Move a finished selective download of @param file in place. The md5
+     * is of the whole package and can't be checked, so the zip is checked
+     * to be usable instead. update_engine verifies the payload itself.
+     */
+    private int finishSelective(File file) {
+        if (!PayloadInfoFactory.createPayloadInfo(Uri.fromFile(file)).validate()) {
+            helper.notifyOrToast(R.string.download_failed,
+                R.string.invalid_zip_file, handler);
+            return -1;
+        }
+        return finalizeDownload(file);
+    }
+
+    /*
+     * Download the given segments in parallel and report progress from this
+     * thread while waiting for them. Return values are same as download(),
+     * 1 meaning all segments have been written.
+     */
+    private int downloadSegments(MirrorSelector mirrors, File file, List<DownloadSegment> segments,
+            DigestTracker digestTracker, ChunkVerifier chunkVerifier) {
+        final SegmentedDownloader downloader = new SegmentedDownloader(client, mirrors, file, totalSize,
+            segments, connections, bufferPool, selective ? null : digestTracker, chunkVerifier,
+            rateLimiter, validator);
+        final long startTime = SystemClock.elapsedRealtime();
+        final long startSize = downloader.getDownloadedSize();
+        accountedSize = startSize;
+        networkChanges = networkMonitor.getChangeCount();
+        paused = false;
+        pauseExpired = false;
+        firstByteReported = false;
+        throughputEstimator.reset();
+        partialFileServer.publish(file, totalSize, segments);
+        try {
+            downloader.start();
+            while (!downloader.await(PROGRESS_INTERVAL)) {
+                if (isStopped()) {
+                    downloader.stop();
+                }
+                if (updatePaused(downloader, mirrors, segments)) {
+                    continue; // Nothing moves until resumed
+                }
+                rateLimiter.setRate(getRateLimit()); // Pick up settings changes
+                downloader.checkStalls();
+                validator = downloader.getValidator();
+                accountNetworkUsage(downloader.getDownloadedSize());
+                if (!networkMonitor.isTransferAllowed(networkUsage)) {
+                    // Stop right where it is, the segments resume from there
+                    waitingForNetwork = true;
+                    downloader.stop();
+                } else if (networkMonitor.getChangeCount() != networkChanges) {
+                    // Sockets of the old network can take long to time out
+                    networkChanges = networkMonitor.getChangeCount();
+                    Log.i(TAG, "Network changed to " + networkMonitor.getTransport() +
+                        ", reconnecting");
+                    downloader.reconnect();
+                } else if (mirrors.onProgress(downloader.getDownloadedSize(),
+                        downloader.getActiveSegments(), rateLimiter.getRate())) {
+                    downloader.reconnect(); // Continue on the faster mirror
+                }
+                reportFirstByte(downloader);
+                updateProgress(downloader.getDownloadedSize(), segments);
+                partialFileServer.onProgress();
+                reportThroughput(downloader.getDownloadedSize() - startSize, startTime);
+                if (!selective) {
+                    // md5 is of the whole package, a selective download can't match it anyway
+                    digestTracker.catchUp(segments, DIGEST_CATCH_UP_BYTES);
+                }
+            }
+        } catch (IOException e) {
+            downloader.stop();
+            return retryAfter(e);
+        } catch (InterruptedException e) {
+            downloader.stop();
+            return 0;
+        } finally {
+            downloader.close();
+        }
+        validator = downloader.getValidator();
+        accountNetworkUsage(downloader.getDownloadedSize());
+        reportFirstByte(downloader);
+        retryStats.onReconnects(downloader.getReconnects());
+        retryStats.onStalls(downloader.getWatchdog().getStalls(),
+            downloader.getWatchdog().getTotalRecoveryTime());
+        updateProgress(downloader.getDownloadedSize(), segments);
+        Log.i(TAG, "Transferred at " + reportThroughput(
+            downloader.getDownloadedSize() - startSize, startTime) + " B/s, limit " +
+                rateLimiter.getRate() + " B/s, " + downloader.getWatchdog());
+        // Always leave a durable checkpoint behind when the transfer ends
+        checkpointAsync(segments, true);
+        if (isStopped()) {
+            return 2;
+        }
+        if (pauseExpired) {
+            return 2;
+        }
+        if (waitingForNetwork) {
+            return 0;
+        }
+        if (downloader.isContentChanged()) {
+            // Nothing written so far can be trusted, start over on the next attempt
+            Log.w(TAG, "Content changed on the server, restarting download");
+            segments.forEach(segment -> segment.setOffset(segment.getStart()));
+            currSize = 0;
+            validator = null;
+            checkpointAsync(segments, true);
+            digestTracker.reset();
+            return 0;
+        }
+        if (downloader.isRangeUnsupported() && (segments.size() > 1 || selective)) {
+            // Server doesn't do ranges, start over with a single connection
+            Log.w(TAG, "Range requests are not supported, falling back to one connection");
+            if (selective) {
+                // Holes can't be skipped without ranges, this download gets all of the package
+                Log.w(TAG, "Selective download is not possible, downloading the whole package");
+                selective = false;
+                dataStore.setSelectiveFallback();
+                try {
+                    storagePlanner.allocate(file, totalSize);
+                } catch (StorageException e) {
+                    return retryAfter(e);
+                }
+            }
+            // Still on chunk boundaries, so that chunks keep being verified as they are written
+            final List<DownloadSegment> segment = DownloadSegment.split(totalSize, 1,
+                getAlignment(chunkVerifier));
+            currSize = 0;
+            connections = 1;
+            checkpointAsync(segment, true);
+            digestTracker.reset();
+            return downloadSegments(mirrors, file, segment, digestTracker, chunkVerifier);
+        }
+        if (downloader.getError() != null) {
+            return retryAfter(downloader.getError());
+        }
+        return downloader.isComplete() ? 1 : 0;
+    }
+
+    /*
+     * Park or resume the transfers of @param downloader as the PauseController
+     * says, and release them once paused for too long. Returns true while paused.
+     * The paused time doesn't count towards the throughput of @param mirrors.
+     */
+    private boolean updatePaused(SegmentedDownloader downloader, MirrorSelector mirrors,
+            List<DownloadSegment> segments) {
+        if (pauseExpired) {
+            return true;
+        }
+        if (pauseController.isPaused()) {
+            if (!paused) {
+                paused = true;
+                downloader.pause();
+                mirrors.restartWindow();
+                Log.i(TAG, "Paused, holding the connections");
+                // Also wins over a status this attempt posted before it saw the pause
+                updateStatusAsync(PAUSED);
+                notificationBuilder.setSubText(context.getString(R.string.download_paused));
+                setForegroundAsync(getForegroundInfo(currPercent, false));
+                checkpointAsync(segments, true);
+            } else if (pauseController.expire(getId())) {
+                Log.i(TAG, "Paused for too long, releasing the connections");
+                pauseExpired = true;
+                downloader.stop();
+            }
+            return true;
+        }
+        if (paused) {
+            paused = false;
+            firstByteReported = false;
+            downloader.resume();
+            mirrors.restartWindow();
+            lastNotificationTime = 0; // Replace the paused text with the next update
+            Log.i(TAG, "Resumed in process");
+        }
+        return false;
+    }
+
+    /*
+     * Report the first byte since the downloader started or resumed for the
+     * latency stats. Background downloads wait for idle by design, so they don't count.
+     */
+    private void reportFirstByte(SegmentedDownloader downloader) {
+        final long firstReadTime = downloader.getFirstReadTime();
+        if (!background && !firstByteReported && firstReadTime > 0) {
+            firstByteReported = true;
+            pauseController.onFirstByte(firstReadTime);
+        }
+    }
+
+    // Move the verified download in @param file in place of the ota package
+    private int finalizeDownload(File file) {
+        if (!ofm.finalizeDownload(file)) {
+            helper.notifyOrToast(R.string.download_failed,
+                R.string.copy_failed, handler);
+            return -1;
+        }
+        partialFileServer.onFinished(ofm.getOTAFile());
+        onPackageReady();
+        return 1;
+    }
+
+    /*
+     * Put a verified copy of the package with @param md5 from the PackageStore
+     * in place of the ota package instead of downloading it. The copy is
+     * hashed again, since the store only knows it's unchanged by its size
+     * and mtime, and a copy that doesn't match is dropped from the store.
+     * Copying and hashing report progress like a download does.
+     * return value:
+     *    0 if there is no usable copy and the package has to be downloaded
+     *    1 if the package was restored
+     *    2 if the work was stopped meanwhile
+     */
+    private int restoreFromStore(String md5, String fileName) {
+        final PackageStore.Entry entry = packageStore.find(md5, totalSize);
+        if (entry == null) {
+            return 0;
+        }
+        Log.i(TAG, "Restoring " + md5 + " from " + entry.getPath());
+        notificationBuilder.setContentText(fileName)
+            .setSubText(context.getString(R.string.restoring_package));
+        setForegroundAsync(getForegroundInfo(0, false));
+        updateStatusAsync(DOWNLOADING);
+        final File otaFile = ofm.getOTAFile();
+        final boolean inPlace = entry.getFile().equals(otaFile);
+        // Copying and hashing both read the whole package
+        final long work = inPlace ? totalSize : 2 * totalSize;
+        if (!inPlace) {
+            try (FileInputStream inStream = new FileInputStream(entry.getFile())) {
+                final FileUtils.ProgressListener listener =
+                    copied -> updateRestoreProgress(copied, work);
+                if (!ofm.copyToOTAPackageDir(inStream, listener)) {
+                    otaFile.delete();
+                    return onRestoreFailed();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "IOException when copying " + entry.getPath(), e);
+                otaFile.delete();
+                return onRestoreFailed();
+            }
+        }
+        final long hashedBefore = work - totalSize;
+        final List<DownloadSegment> written = Collections.singletonList(
+            new DownloadSegment(0, totalSize, totalSize));
+        final String computedMd5;
+        try (DigestTracker digestTracker = new DigestTracker(otaFile,
+                DigestTracker.newDigest(), 0, bufferPool)) {
+            while (digestTracker.getHashedOffset() < totalSize) {
+                if (isStopped()) {
+                    if (!inPlace) {
+                        otaFile.delete(); // Not verified, can't be left as the ota package
+                    }
+                    return 2;
+                }
+                digestTracker.catchUp(written, DIGEST_CATCH_UP_BYTES);
+                updateRestoreProgress(hashedBefore + digestTracker.getHashedOffset(), work);
+            }
+            computedMd5 = digestTracker.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when computing md5 of " + otaFile.getAbsolutePath(), e);
+            if (!inPlace) {
+                otaFile.delete();
+            }
+            return onRestoreFailed();
+        }
+        if (!computedMd5.equals(md5)) {
+            Log.e(TAG, entry.getPath() + " doesn't match " + md5 + " anymore");
+            packageStore.remove(entry);
+            otaFile.delete();
+            return onRestoreFailed();
+        }
+        // Keep track of the new copy, and that the old one was just used
+        packageStore.put(md5, totalSize, otaFile);
+        if (!inPlace) {
+            packageStore.put(md5, totalSize, entry.getFile());
+        }
+        currSize = totalSize;
+        updateProgressAsync(totalSize, 100, 0, 0);
+        // A pipelined update may be waiting for the package already
+        partialFileServer.serve(otaFile);
+        onPackageReady();
+        return 1;
+    }
+
+    // Report @param done of the @param work bytes that restoring the package reads
+    private void updateRestoreProgress(long done, long work) {
+        final int percent = (int) ((double) done / work * 100);
+        if (percent <= currPercent) {
+            return;
+        }
+        currPercent = percent;
+        setForegroundAsync(getForegroundInfo(percent, false));
+        updateProgressAsync(totalSize / 100 * percent, percent, 0, -1);
+    }
+
+    // The package is downloaded instead, which starts from scratch on the progress
+    private int onRestoreFailed() {
+        currPercent = 0;
+        notificationBuilder.setSubText(null);
+        return 0;
+    }
+
+    // Tell the user that the verified ota package is in place
+    private void onPackageReady() {
+        // A pipelined update may be applying it already
+        if (dataStore.getGlobalStatus() != UPDATING) {
+            helper.onlyNotify(R.string.download_finished, R.string.click_to_update);
+            // Mark as download finished and an update installation is pending
+            dataStore.setGlobalStatus(UPDATE_PENDING);
+        }
+    }
+
+    /*
+     * Returns the previously persisted segments if the partially
+     * downloaded file can be resumed, null otherwise. Segments and
+     * downloaded size are checkpointed together and only ever describe
+     * bytes that were flushed to disk before, so a checkpoint that
+     * survived a crash or power loss is safe to resume from. Retries
+     * within this worker continue from the segments and validator in memory.
+     */
+    private List<DownloadSegment> restoreSegments(File file) {
+        if (!file.isFile() || file.length() != totalSize) {
+            return null;
+        }
+        if (lastCheckpoint != null) {
+            final List<DownloadSegment> segments = DownloadSegment.snapshot(lastCheckpoint);
+            currSize = DownloadSegment.getDownloadedSize(segments);
+            return segments;
+        }
+        final List<DownloadSegment> segments = dataStore.getDownloadSegments();
+        if (segments == null || !DownloadSegment.covers(segments, totalSize) ||
+                DownloadSegment.getDownloadedSize(segments) !=
+                    dataStore.getCheckpointedDownloadSize()) {
+            return null;
+        }
+        currSize = DownloadSegment.getDownloadedSize(segments);
+        validator = rebindValidator(ContentValidator.parse(dataStore.getDownloadValidator()));
+        return segments;
+    }
+
+    /*
+     * Create a DigestTracker for @param file, resuming from the last digest
+     * checkpoint if it's for the same package and still within the data
+     * that is written. Otherwise the already written prefix gets rehashed.
+     */
+    private DigestTracker restoreDigestTracker(File file, String md5,
+            List<DownloadSegment> segments) throws IOException {
+        final DigestCheckpoint checkpoint = dataStore.getDigestCheckpoint();
+        dataStore.updateDigestCheckpoint(null); // Tracker takes over the digest
+        if (checkpoint != null && checkpoint.getMd5().equals(md5) &&
+                checkpoint.getOffset() <= DownloadSegment.getContiguousSize(segments)) {
+            return new DigestTracker(file, checkpoint.getDigest(),
+                checkpoint.getOffset(), bufferPool);
+        }
+        return new DigestTracker(file, DigestTracker.newDigest(), 0, bufferPool);
+    }
+
+    /*
+     * Check every chunk of @param file against the manifest and persist
+     * segments covering only the corrupt ones, so that the next attempt
+     * fetches just those. Returns false if no chunk is corrupt.
+     */
+    private boolean repairChunks(File file, ChunkVerifier chunkVerifier) {
+        try {
+            final List<Integer> corrupt = chunkVerifier.findCorruptChunks(file);
+            if (corrupt.isEmpty()) {
+                return false;
+            }
+            Log.w(TAG, "md5 mismatch, fetching " + corrupt.size() + " corrupt chunks again");
+            final List<DownloadSegment> segments = DownloadSegment.forMissingChunks(
+                totalSize, chunkVerifier.getChunkSize(), corrupt);
+            currSize = DownloadSegment.getDownloadedSize(segments);
+            checkpointAsync(segments, true);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when verifying chunks of " + file.getAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    private void checkpointDigest(DigestTracker digestTracker, String md5) {
+        final long offset = digestTracker.getHashedOffset();
+        final MessageDigest digest = digestTracker.checkpoint();
+        if (digest != null) {
+            dataStore.updateDigestCheckpoint(new DigestCheckpoint(md5, offset, digest));
+        }
+    }
+
+    // Rate limit in bytes per second for this kind of download, 0 if unlimited
+    private long getRateLimit() {
+        return MBPS_TO_BYTES * (background ? dataStore.getBackgroundDownloadRateLimit() :
+            dataStore.getDownloadRateLimit());
+    }
+
+    /*
+     * Publish the effective speed of @param size bytes transferred since
+     * @param startTime as work progress. Returns the speed in bytes per second.
+     */
+    private long reportThroughput(long size, long startTime) {
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        final long throughput = elapsed > 0 ? size * 1000 / elapsed : 0;
+        setProgressAsync(new Data.Builder()
+            .putLong(THROUGHPUT, throughput)
+            .build());
+        return throughput;
+    }
+
+    // Attribute the data written since the last call, up to @param size, to the current network
+    private void accountNetworkUsage(long size) {
+        final long written = size - accountedSize;
+        accountedSize = size;
+        if (written > 0) {
+            final NetworkMonitor.Transport transport = networkMonitor.getTransport();
+            networkUsage = networkUsage.plus(transport != null ?
+                transport : NetworkMonitor.Transport.OTHER, written);
+        }
+    }
+
+    private void updateProgress(long size, List<DownloadSegment> segments) {
+        // Fed even without new data so that a stall shows up as a falling speed
+        throughputEstimator.update(size);
+        final long speed = throughputEstimator.getRate();
+        if (size == currSize && speed == currSpeed) {
+            return;
+        }
+        currSize = size;
+        currSpeed = speed;
+        final long eta = throughputEstimator.getEta(totalSize - currSize);
+        final long now = SystemClock.elapsedRealtime();
+        int tmp = (int) ((currSize*100)/totalSize);
+        if (tmp > currPercent || now - lastNotificationTime >= NOTIFICATION_INTERVAL) {
+            currPercent = Math.max(tmp, currPercent);
+            lastNotificationTime = now;
+            notificationBuilder.setSubText(Utils.joinDetails(
+                Utils.formatSpeed(context, speed), Utils.formatEta(context, eta)));
+            setForegroundAsync(getForegroundInfo(currPercent, false)); // Update notification
+        }
+        updateProgressAsync(currSize, currPercent, speed, eta); // Update ui
+        if (checkpointer.isCheckpointDue(currSize)) {
+            checkpointAsync(segments, false); // Update sharedPrefs
+        }
+    }
+
     private void updateStatusAsync(int status) {
         handler.post(() -> dataStore.updateDownloadStatus(status));
     }
 
-    private void updateProgressAsync(long size, int percent) {
-        handler.post(() -> dataStore.updateDownloadProgress(size, percent));
+    private void updateProgressAsync(long size, int percent, long speed, long eta) {
+        final NetworkUsage usage = networkUsage;
+        handler.post(() -> dataStore.updateDownloadProgress(size, percent, speed, eta, usage));
+    }
+
+    /*
+     * Persist the current progress and @param segments from the handler
+     * thread. If @param sync is true this waits until the checkpoint is
+     * committed to disk, or dropped since flushing the data failed.
+     * Snapshot is taken on the calling thread so that size and segments
+     * always agree with each other, and the data it describes is flushed
+     * before it is persisted.
+     */
+    private void checkpointAsync(List<DownloadSegment> segments, boolean sync) {
+        final List<DownloadSegment> snapshot = DownloadSegment.snapshot(segments);
+        lastCheckpoint = snapshot;
+        final String serialized = DownloadSegment.serialize(snapshot);
+        final long size = DownloadSegment.getDownloadedSize(snapshot);
+        final int percent = (int) ((size*100)/totalSize);
+        final String currValidator = validator == null ? null : validator.serialize();
+        final String usage = networkUsage.serialize();
+        if (checkpointer != null) {
+            checkpointer.onCheckpoint(size);
+        }
+        final File file = partialFile;
+        final CountDownLatch committed = new CountDownLatch(1);
+        handler.post(() -> {
+            if (forceToDisk(file)) {
+                dataStore.checkpointDownloadProgress(
+                    size, percent, serialized, currValidator, usage, sync);
+            }
+            committed.countDown();
+        });
+        if (!sync) {
+            return;
+        }
+        try {
+            committed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Flush the data written to @param file so far to disk. The file is
+     * preallocated to its full length, so after a power loss its length
+     * doesn't tell what was written. Returns false if flushing failed.
+     */
+    private static boolean forceToDisk(File file) {
+        if (file == null || !file.isFile()) {
+            return true; // Nothing written that could be lost
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when flushing " + file.getAbsolutePath(), e);
+            return false;
+        }
     }
 
     private ForegroundInfo getForegroundInfo(int progress, boolean indeterminate) {
@@ -217,14 +1085,42 @@ public class DownloadWorker extends Worker {
             .build());
     }
 
-    // Copy downloaded file to Downloads folder and then to ota dir (/data/kosp_ota)
-    private boolean copyFile(File file, String fileName) {
-        try (FileInputStream inStream = new FileInputStream(file)) {
-            FileUtils.copy(file, Utils.getDownloadFile(fileName));
-            return ofm.copyToOTAPackageDir(inStream);
+    /*
+     * Copy the verified package in @param file to @param replica and add
+     * it to the PackageStore as a copy of the package with @param md5.
+     * The package is in place already, so a failed copy is only logged.
+     */
+    private void replicate(File file, File replica, String md5) {
+        if (!storagePlanner.fits(replica, totalSize)) {
+            Log.w(TAG, "Not enough space to copy to " + replica.getAbsolutePath());
+            return;
+        }
+        try (FileChannel inChannel = new FileInputStream(file).getChannel();
+                FileChannel outChannel = new FileOutputStream(replica).getChannel()) {
+            long position = 0;
+            while (position < totalSize) {
+                final long transferred = inChannel.transferTo(position,
+                    totalSize - position, outChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                position += transferred;
+            }
         } catch (IOException e) {
-            Log.e(TAG, "IOException when copying file " + file.getAbsolutePath(), e);
+            Log.e(TAG, "IOException when copying to " + replica.getAbsolutePath(), e);
+            replica.delete();
+            return;
+        }
+        packageStore.put(md5, totalSize, replica);
+    }
+
+    private static final class Failure {
+        final FailureClass failureClass;
+        final IOException exception;
+
+        Failure(FailureClass failureClass, IOException exception) {
+            this.failureClass = failureClass;
+            this.exception = exception;
         }
-        return false;
     }
 }
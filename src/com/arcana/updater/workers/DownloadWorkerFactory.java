@@ -22,31 +22,65 @@ import androidx.work.ListenableWorker;
 import androidx.work.WorkerFactory;
 import androidx.work.WorkerParameters;
 
+import com.arcana.updater.model.data.ChunkManifestStore;
 import com.arcana.updater.model.data.DataStore;
+import com.arcana.updater.model.data.GithubApiHelper;
+import com.arcana.updater.model.data.NetworkMonitor;
 import com.arcana.updater.model.data.OTAFileManager;
+import com.arcana.updater.model.data.PackageStore;
+import com.arcana.updater.model.data.PreflightChecker;
 import com.arcana.updater.util.NotificationHelper;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import okhttp3.OkHttpClient;
+
 @Singleton
 public class DownloadWorkerFactory extends WorkerFactory {
     private final NotificationHelper helper;
     private final OTAFileManager ofm;
     private final DataStore dataStore;
+    private final BufferPool bufferPool;
+    private final ChunkManifestStore chunkManifestStore;
+    private final OkHttpClient client;
+    private final RetryStats retryStats;
+    private final PartialFileServer partialFileServer;
+    private final PreflightChecker preflightChecker;
+    private final NetworkMonitor networkMonitor;
+    private final PauseController pauseController;
+    private final GithubApiHelper githubApiHelper;
+    private final PackageStore packageStore;
 
     @Inject
     public DownloadWorkerFactory(NotificationHelper helper,
-            OTAFileManager ofm, DataStore dataStore) {
+            OTAFileManager ofm, DataStore dataStore,
+            BufferPool bufferPool, ChunkManifestStore chunkManifestStore,
+            OkHttpClient client, RetryStats retryStats,
+            PartialFileServer partialFileServer, PreflightChecker preflightChecker,
+            NetworkMonitor networkMonitor, PauseController pauseController,
+            GithubApiHelper githubApiHelper, PackageStore packageStore) {
         this.helper = helper;
         this.ofm = ofm;
         this.dataStore = dataStore;
+        this.bufferPool = bufferPool;
+        this.chunkManifestStore = chunkManifestStore;
+        this.client = client;
+        this.retryStats = retryStats;
+        this.partialFileServer = partialFileServer;
+        this.preflightChecker = preflightChecker;
+        this.networkMonitor = networkMonitor;
+        this.pauseController = pauseController;
+        this.githubApiHelper = githubApiHelper;
+        this.packageStore = packageStore;
     }
 
     @Override
     public ListenableWorker createWorker(Context appContext,
             String workerClassName, WorkerParameters workerParameters) {
         return new DownloadWorker(appContext, workerParameters,
-            helper, ofm, dataStore);
+            helper, ofm, dataStore, bufferPool, chunkManifestStore, client, retryStats,
+            partialFileServer, preflightChecker, networkMonitor, pauseController,
+            githubApiHelper, packageStore);
     }
 }
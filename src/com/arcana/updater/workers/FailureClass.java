@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arcana.updater.workers;
+
+import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
+
+import java.io.IOException;
+
+/*
+ * What kind of failure ended a download attempt, each with its own retry
+ * policy. Delays grow exponentially from baseDelay up to maxDelay with
+ * full jitter, and after maxAttempts the retry is left to WorkManager.
+ */
+public enum FailureClass {
+    // DNS, connect, TLS, timeouts and resets, the network is expected to come back
+    TRANSIENT_NETWORK(2000, 60000, 8),
+    // 5xx and 429, back off a lot so that devices don't hit the server in sync
+    SERVER_OVERLOAD(10000, 600000, 6),
+    // 401, 403 and 410, signed urls expired, retried right away with fresh ones
+    EXPIRED_URL(0, 0, 3),
+    // Other 4xx, retrying won't help
+    PERMANENT(0, 0, 0),
+    // Local file can't be written, typically the disk is full
+    LOCAL_STORAGE(0, 0, 0);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    final long baseDelay, maxDelay; // millis
+    final int maxAttempts;
+
+    FailureClass(long baseDelay, long maxDelay, int maxAttempts) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+    }
+
+    boolean isRetryable() {
+        return maxAttempts > 0;
+    }
+
+    static FailureClass of(IOException e) {
+        if (e instanceof StorageException) {
+            return LOCAL_STORAGE;
+        }
+        if (e instanceof HttpStatusException) {
+            final int code = ((HttpStatusException) e).getCode();
+            if (code == HTTP_CLIENT_TIMEOUT) {
+                return TRANSIENT_NETWORK;
+            }
+            if (code == HTTP_TOO_MANY_REQUESTS || code >= HTTP_INTERNAL_ERROR) {
+                return SERVER_OVERLOAD;
+            }
+            if (code == HTTP_UNAUTHORIZED || code == HTTP_FORBIDDEN || code == HTTP_GONE) {
+                return EXPIRED_URL;
+            }
+            return PERMANENT;
+        }
+        return TRANSIENT_NETWORK;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arcana.updater.workers;
+
+import java.io.IOException;
+
+// Server answered with an unexpected status code
+final class HttpStatusException extends IOException {
+    private final int code;
+    private final long retryAfter;
+
+    // @param retryAfter in millis as asked by the server, 0 if it didn't
+    HttpStatusException(String message, int code, long retryAfter) {
+        super(message);
+        this.code = code;
+        this.retryAfter = retryAfter;
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    long getRetryAfter() {
+        return retryAfter;
+    }
+}
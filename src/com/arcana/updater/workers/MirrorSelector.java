@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/*
+ * Keeps track of the mirrors a package can be downloaded from. Mirrors
+ * are ordered by the time to first byte of a tiny range request, and the
+ * current one is switched to the next usable mirror once errors pile up
+ * on it or its throughput per running segment drops far below the best
+ * it has done. Windows in which segments finished or the rate limit
+ * changed aren't judged.
+ * Switching never discards data, segments simply continue on the new mirror.
+ */
+final class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+    private static final long PROBE_TIMEOUT = 5000; // millis
+    private static final int MAX_ERRORS = 3; // per mirror
+    private static final long THROUGHPUT_WINDOW = 15000; // millis
+    private static final int SLOW_FRACTION = 4; // switch below a 1/4th of the peak
+
+    private final OkHttpClient client;
+    private final long fileSize;
+    private final List<Mirror> mirrors;
+    private Mirror current;
+    private int windowSegments;
+    private long windowStart, windowSize, windowRate, peakThroughput; // throughput per segment
+
+    // @param urls in order of preference
+    MirrorSelector(OkHttpClient client, List<URL> urls, long fileSize) {
+        this.client = client;
+        this.fileSize = fileSize;
+        mirrors = new ArrayList<>(urls.size());
+        urls.forEach(url -> mirrors.add(new Mirror(url)));
+        current = mirrors.get(0);
+    }
+
+    /*
+     * Request the first byte from all the mirrors in parallel and
+     * reorder them by how fast they responded. Mirrors that failed,
+     * timed out or serve a file of another size go last.
+     */
+    void probe() {
+        if (mirrors.size() < 2) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(mirrors.size());
+        final List<Call> calls = new ArrayList<>(mirrors.size());
+        final long start = SystemClock.elapsedRealtime();
+        mirrors.forEach(mirror -> {
+            final Call call = client.newCall(new Request.Builder()
+                .url(mirror.url)
+                .header("Range", "bytes=0-0")
+                .build());
+            calls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try {
+                        final int code = response.code();
+                        final String contentRange = response.header("Content-Range");
+                        if ((code == HTTP_PARTIAL && contentRange != null &&
+                                contentRange.endsWith("/" + fileSize)) || code == HTTP_OK) {
+                            mirror.ttfb = SystemClock.elapsedRealtime() - start;
+                        } else {
+                            Log.w(TAG, "Probing " + mirror.url + " returned " + code +
+                                ", Content-Range " + contentRange);
+                        }
+                    } finally {
+                        response.close();
+                        latch.countDown();
+                    }
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    Log.w(TAG, "Probing " + mirror.url + " failed", e);
+                    latch.countDown();
+                }
+            });
+        });
+        try {
+            latch.await(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while probing mirrors");
+        }
+        calls.forEach(Call::cancel);
+        synchronized (this) {
+            mirrors.sort(Comparator.comparingLong(mirror -> mirror.ttfb));
+            current = mirrors.get(0);
+        }
+        Log.i(TAG, "Probed mirrors " + mirrors);
+    }
+
+    synchronized URL getCurrent() {
+        return current.url;
+    }
+
+    synchronized boolean hasAlternatives() {
+        return mirrors.stream().filter(mirror -> !mirror.disabled).count() > 1;
+    }
+
+    /*
+     * Count an error on @param url, switching away from it once there are
+     * too many. Returns false if there is no usable mirror left.
+     */
+    synchronized boolean onError(URL url) {
+        final Mirror mirror = find(url);
+        if (mirror != null && ++mirror.errors >= MAX_ERRORS) {
+            disable(mirror);
+        }
+        return !current.disabled;
+    }
+
+    // Stop using @param url at all, returns false if there is no usable mirror left
+    synchronized boolean disable(URL url) {
+        final Mirror mirror = find(url);
+        if (mirror != null) {
+            disable(mirror);
+        }
+        return !current.disabled;
+    }
+
+    /*
+     * Called periodically with the total @param downloadedSize, the number of
+     * @param activeSegments transferring and the current @param rateLimit.
+     * Returns true if the current mirror got too slow and another one was switched to.
+     */
+    synchronized boolean onProgress(long downloadedSize, int activeSegments, long rateLimit) {
+        final long now = SystemClock.elapsedRealtime();
+        if (rateLimit != windowRate) {
+            // Best throughput under the old limit says nothing about the new one
+            peakThroughput = 0;
+        }
+        if (windowStart == 0 || activeSegments != windowSegments || rateLimit != windowRate) {
+            startWindow(now, downloadedSize, activeSegments, rateLimit);
+            return false;
+        }
+        final long elapsed = now - windowStart;
+        if (elapsed < THROUGHPUT_WINDOW || activeSegments == 0) {
+            return false;
+        }
+        final long throughput = (downloadedSize - windowSize) * 1000 / elapsed / activeSegments;
+        startWindow(now, downloadedSize, activeSegments, rateLimit);
+        peakThroughput = Math.max(peakThroughput, throughput);
+        if (throughput * SLOW_FRACTION >= peakThroughput || !hasAlternatives()) {
+            return false;
+        }
+        Log.w(TAG, current.url + " dropped to " + throughput + " B/s per segment from " +
+            peakThroughput + " B/s");
+        switchMirror();
+        return true;
+    }
+
+    // Drop the current throughput window, like when the transfers were parked for a while
+    synchronized void restartWindow() {
+        windowStart = 0;
+    }
+
+    private void disable(Mirror mirror) {
+        mirror.disabled = true;
+        if (mirror == current) {
+            switchMirror();
+        }
+    }
+
+    // Move on to the next usable mirror after the current one
+    private void switchMirror() {
+        final int index = mirrors.indexOf(current);
+        for (int i = 1; i < mirrors.size(); i++) {
+            final Mirror mirror = mirrors.get((index + i) % mirrors.size());
+            if (!mirror.disabled) {
+                Log.i(TAG, "Switching from " + current.url + " to " + mirror.url);
+                current = mirror;
+                break;
+            }
+        }
+        // Throughput of the new mirror is judged on its own
+        peakThroughput = 0;
+        windowStart = 0;
+    }
+
+    private void startWindow(long now, long downloadedSize, int activeSegments, long rateLimit) {
+        windowStart = now;
+        windowSize = downloadedSize;
+        windowSegments = activeSegments;
+        windowRate = rateLimit;
+    }
+
+    // @param url has to be one returned by getCurrent(), URL.equals does name lookups
+    private Mirror find(URL url) {
+        return mirrors.stream()
+            .filter(mirror -> mirror.url == url)
+            .findFirst()
+            .orElse(null);
+    }
+
+    private static final class Mirror {
+        final URL url;
+        volatile long ttfb = Long.MAX_VALUE;
+        int errors;
+        boolean disabled;
+
+        Mirror(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public String toString() {
+            return url + " (ttfb " + (ttfb == Long.MAX_VALUE ? "-" : ttfb + " ms") + ")";
+        }
+    }
+}
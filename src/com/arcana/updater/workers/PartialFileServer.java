@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.arcana.updater.model.data.DownloadSegment;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/*
+ * Minimal HTTP server on the loopback interface that serves the package
+ * while DownloadWorker is still writing it, so that update_engine can
+ * apply the payload as it arrives instead of after the whole download.
+ * Reads of data that isn't written yet block until the worker reports
+ * it, and fail once nothing arrived for STALL_TIMEOUT, which makes
+ * update_engine retry the request.
+ */
+@Singleton
+public class PartialFileServer {
+    private static final String TAG = "PartialFileServer";
+    private static final String PATH = "/update.zip";
+    private static final long STALL_TIMEOUT = 120000; // millis
+    private static final int READ_TIMEOUT = 30000; // millis, for request headers
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 64;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final BufferPool bufferPool;
+    private final ExecutorService executor;
+    private ServerSocket serverSocket;
+    // Published download, guarded by this
+    private File file;
+    private long fileSize;
+    private List<DownloadSegment> segments;
+    private boolean complete, failed;
+
+    @Inject
+    public PartialFileServer(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        executor = Executors.newCachedThreadPool();
+    }
+
+    // Start serving if not already, returns the url the package is served at
+    public synchronized String start() throws IOException {
+        if (serverSocket == null || serverSocket.isClosed()) {
+            final ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            serverSocket = socket;
+            executor.execute(() -> accept(socket));
+        }
+        return "http://" + serverSocket.getInetAddress().getHostAddress() + ":" +
+            serverSocket.getLocalPort() + PATH;
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when closing server socket", e);
+        }
+        serverSocket = null;
+    }
+
+    /*
+     * Serve @param file of @param fileSize bytes, of which the data
+     * written according to @param segments can be read already
+     */
+    synchronized void publish(File file, long fileSize, List<DownloadSegment> segments) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.segments = segments;
+        complete = false;
+        failed = false;
+        notifyAll();
+    }
+
+    // Called whenever the offsets of the published segments advanced
+    synchronized void onProgress() {
+        notifyAll();
+    }
+
+    // The download is complete and verified, and was moved to @param file
+    synchronized void onFinished(File file) {
+        this.file = file;
+        complete = true;
+        notifyAll();
+    }
+
+    // Serve the complete and verified package in @param file, which was not downloaded
+    synchronized void serve(File file) {
+        publish(file, file.length(), Collections.emptyList());
+        complete = true;
+    }
+
+    // The download failed for good, pending reads fail right away
+    synchronized void onFailed() {
+        failed = true;
+        notifyAll();
+    }
+
+    private void accept(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                executor.execute(() -> serve(client));
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.e(TAG, "IOException when accepting connection", e);
+                }
+            }
+        }
+    }
+
+    // Handle a single request on @param client and close it
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String line;
+            int headers = 0;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (++headers > MAX_HEADERS) {
+                    sendStatus(out, "431 Request Header Fields Too Large", null);
+                    return;
+                }
+                final int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            final String[] request = requestLine.split(" ");
+            final boolean head = request[0].equals("HEAD");
+            if (request.length < 2 || !(head || request[0].equals("GET"))) {
+                sendStatus(out, "405 Method Not Allowed", null);
+                return;
+            }
+            if (!request[1].equals(PATH)) {
+                sendStatus(out, "404 Not Found", null);
+                return;
+            }
+            final long size = awaitFileSize();
+            long start = 0, end = size - 1;
+            if (range != null) {
+                final Matcher matcher = RANGE_PATTERN.matcher(range);
+                if (matcher.matches()) {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(Long.parseLong(matcher.group(2)), size - 1);
+                    }
+                }
+                if (!matcher.matches() || start > end) {
+                    sendStatus(out, "416 Range Not Satisfiable", "Content-Range: bytes */" + size);
+                    return;
+                }
+            }
+            final StringBuilder response = new StringBuilder()
+                .append(range != null ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK")
+                .append("\r\nContent-Type: application/zip")
+                .append("\r\nAccept-Ranges: bytes")
+                .append("\r\nContent-Length: ").append(end - start + 1);
+            if (range != null) {
+                response.append("\r\nContent-Range: bytes ")
+                    .append(start).append('-').append(end).append('/').append(size);
+            }
+            response.append("\r\nConnection: close\r\n\r\n");
+            out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            if (!head) {
+                sendRange(start, end + 1, Channels.newChannel(out));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Serving request failed", e);
+        } catch (InterruptedException e) {
+            // Server is going away
+        }
+    }
+
+    // Write data in [@param start, @param end) of the file to @param out as it becomes available
+    private void sendRange(long start, long end, WritableByteChannel out)
+            throws IOException, InterruptedException {
+        final File target;
+        synchronized (this) {
+            target = file;
+        }
+        final ByteBuffer buffer = bufferPool.acquire();
+        // Opened once, so the data stays readable when the download is renamed
+        try (FileChannel channel = new RandomAccessFile(target, "r").getChannel()) {
+            long position = start;
+            while (position < end) {
+                final long limit = Math.min(awaitData(position), end);
+                while (position < limit) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+                    final int bytesRead = channel.read(buffer, position);
+                    if (bytesRead == -1) {
+                        throw new IOException("Unexpected end of file at " + position);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    position += bytesRead;
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    // Wait until a download is published and return its size
+    private synchronized long awaitFileSize() throws IOException, InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + STALL_TIMEOUT;
+        while (file == null) {
+            checkFailed();
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new IOException("No download was published");
+            }
+            wait(remaining);
+        }
+        return fileSize;
+    }
+
+    /*
+     * Wait until data at @param position is written. Returns the end of
+     * the written data that continues from there without a gap.
+     */
+    private synchronized long awaitData(long position) throws IOException, InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + STALL_TIMEOUT;
+        while (true) {
+            checkFailed();
+            final long available = getAvailableEnd(position);
+            if (available > position) {
+                return available;
+            }
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new IOException("No data at " + position + " for " + STALL_TIMEOUT + " ms");
+            }
+            wait(remaining);
+        }
+    }
+
+    private long getAvailableEnd(long position) {
+        if (complete) {
+            return fileSize;
+        }
+        // Segments are updated in place by the writers, never restructured
+        for (int i = 0; i < segments.size(); i++) {
+            final DownloadSegment segment = segments.get(i);
+            if (position >= segment.getStart() && position < segment.getEnd()) {
+                final long offset = segment.getOffset();
+                if (offset <= position) {
+                    return position;
+                }
+                long available = offset;
+                // Complete segments are followed by the next one's data
+                for (int j = i; available == segments.get(j).getEnd() &&
+                        j + 1 < segments.size(); j++) {
+                    available = segments.get(j + 1).getOffset();
+                }
+                return available;
+            }
+        }
+        return position;
+    }
+
+    private void checkFailed() throws IOException {
+        if (failed) {
+            throw new IOException("Download failed");
+        }
+    }
+
+    private static void sendStatus(OutputStream out, String status,
+            String header) throws IOException {
+        final String response = "HTTP/1.1 " + status + (header != null ? "\r\n" + header : "") +
+            "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // Read a CRLF terminated line, null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+}
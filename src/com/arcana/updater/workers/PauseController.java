@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/*
+ * Pauses the running DownloadWorker in process. A paused worker parks
+ * its transfers but keeps its connections, threads and state for
+ * GRACE_PERIOD, so that resuming within that time continues right away
+ * instead of waiting for WorkManager, a new worker and new connections.
+ * After that, or if the process died meanwhile, resuming falls back to
+ * enqueuing a new request.
+ *
+ * Also measures how long it takes from starting or resuming
+ * a download until the first byte arrives.
+ */
+@Singleton
+public class PauseController {
+    private static final String TAG = "PauseController";
+    // Servers close connections nobody reads from not much later than this
+    private static final long GRACE_PERIOD = 30000; // millis
+
+    private final Latency startLatency = new Latency();
+    private final Latency resumeLatency = new Latency();
+    private final Latency inProcessResumeLatency = new Latency();
+    // Guarded by this
+    private UUID worker;
+    private boolean paused, resumeRequested;
+    private long pausedAt, requestedAt, resumedAt; // elapsed realtime
+
+    @Inject
+    public PauseController() {}
+
+    // A new request was enqueued, to start or (if @param resume is true) to resume a download
+    public synchronized void onEnqueued(boolean resume) {
+        requestedAt = SystemClock.elapsedRealtime();
+        resumeRequested = resume;
+    }
+
+    /*
+     * Pause the worker transferring in this process.
+     * Returns false if there is none, the work has to be cancelled then.
+     */
+    public synchronized boolean pause() {
+        if (worker == null) {
+            return false;
+        }
+        paused = true;
+        pausedAt = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    /*
+     * Resume the paused worker. Returns false if it gave up
+     * its session already, a new request has to be enqueued then.
+     */
+    public synchronized boolean resume() {
+        if (worker == null || !paused) {
+            return false;
+        }
+        paused = false;
+        resumedAt = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    // Worker with @param id can be paused in process from now on
+    synchronized void attach(UUID id) {
+        worker = id;
+        paused = false;
+    }
+
+    synchronized void detach(UUID id) {
+        if (id.equals(worker)) {
+            worker = null;
+            paused = false;
+        }
+    }
+
+    /*
+     * Detach the worker with @param id if it's paused for longer than
+     * the grace period. Returns true if it has to release its session.
+     */
+    synchronized boolean expire(UUID id) {
+        if (!paused || !id.equals(worker) ||
+                SystemClock.elapsedRealtime() - pausedAt < GRACE_PERIOD) {
+            return false;
+        }
+        worker = null;
+        paused = false;
+        return true;
+    }
+
+    // The first byte since the last start or resume arrived at @param time
+    synchronized void onFirstByte(long time) {
+        if (resumedAt > 0) {
+            inProcessResumeLatency.add(time - resumedAt);
+            Log.i(TAG, "Resumed in process, first byte after " + (time - resumedAt) + " ms");
+            resumedAt = 0;
+        } else if (requestedAt > 0) {
+            (resumeRequested ? resumeLatency : startLatency).add(time - requestedAt);
+            Log.i(TAG, (resumeRequested ? "Resumed" : "Started") + ", first byte after " +
+                (time - requestedAt) + " ms");
+            requestedAt = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PauseController[paused = " + paused + ", start to first byte " + startLatency +
+            ", resume to first byte " + resumeLatency + ", in process " + inProcessResumeLatency +
+            "]";
+    }
+
+    private static final class Latency {
+        private int count;
+        private long total, max; // millis
+
+        void add(long latency) {
+            count++;
+            total += latency;
+            max = Math.max(max, latency);
+        }
+
+        @Override
+        public String toString() {
+            return "(count = " + count + ", mean = " + (count > 0 ? total / count : 0) +
+                " ms, max = " + max + " ms)";
+        }
+    }
+}
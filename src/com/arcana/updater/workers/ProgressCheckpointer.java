@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import static com.arcana.updater.util.Constants.MB;
+
+import android.os.SystemClock;
+
+/*
+ * Decides when the download progress has to be written to disk.
+ * Progress is kept exact in memory and published to the ui often,
+ * but a durable checkpoint is only due once enough time has passed
+ * or enough bytes have been written since the last one.
+ */
+final class ProgressCheckpointer {
+    private static final long CHECKPOINT_INTERVAL = 10000; // millis
+    private static final long CHECKPOINT_BYTES = 32L * MB;
+
+    private long lastCheckpointTime, lastCheckpointSize;
+
+    ProgressCheckpointer(long size) {
+        onCheckpoint(size);
+    }
+
+    boolean isCheckpointDue(long size) {
+        return size - lastCheckpointSize >= CHECKPOINT_BYTES ||
+            (size != lastCheckpointSize &&
+                SystemClock.elapsedRealtime() - lastCheckpointTime >= CHECKPOINT_INTERVAL);
+    }
+
+    void onCheckpoint(long size) {
+        lastCheckpointSize = size;
+        lastCheckpointTime = SystemClock.elapsedRealtime();
+    }
+}
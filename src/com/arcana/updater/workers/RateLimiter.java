@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import android.os.SystemClock;
+
+/*
+ * Token bucket shared by all the connections of a download. Readers pay
+ * for the bytes after reading them, so the bucket can go into debt and
+ * the reader is told how long to back off until it's paid off. The bucket
+ * only holds BURST_MILLIS worth of tokens to smooth out bursts.
+ */
+final class RateLimiter {
+    private static final long BURST_MILLIS = 250;
+
+    private long bytesPerSecond, capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    // @param bytesPerSecond 0 means unlimited
+    RateLimiter(long bytesPerSecond) {
+        lastRefillNanos = SystemClock.elapsedRealtimeNanos();
+        setRate(bytesPerSecond);
+    }
+
+    synchronized void setRate(long bytesPerSecond) {
+        if (this.bytesPerSecond == bytesPerSecond) {
+            return;
+        }
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        capacity = Math.max(bytesPerSecond * BURST_MILLIS / 1000, 1);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /*
+     * Take @param bytes that were just read out of the bucket. Returns
+     * how long in millis the caller has to wait before reading again.
+     */
+    synchronized long acquire(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+    }
+
+    private void refill() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(capacity,
+                tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        }
+        lastRefillNanos = now;
+    }
+}
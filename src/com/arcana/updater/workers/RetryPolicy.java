@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arcana.updater.workers;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Decides how long to wait before retrying a download attempt that ended
+ * with a FailureClass. Full jitter (a random delay between 0 and the
+ * exponential bound) keeps a fleet of devices that failed at the same
+ * time from retrying at the same time.
+ */
+final class RetryPolicy {
+    private final Map<FailureClass, Integer> attempts = new EnumMap<>(FailureClass.class);
+
+    /*
+     * Returns the delay in millis before retrying after a failure of
+     * @param failureClass, at least @param retryAfter if the server asked
+     * for it, or -1 if it shouldn't be retried in this run anymore.
+     */
+    long nextDelay(FailureClass failureClass, long retryAfter) {
+        final int attempt = attempts.merge(failureClass, 1, Integer::sum);
+        if (attempt > failureClass.maxAttempts) {
+            return -1;
+        }
+        final long bound = Math.min(failureClass.maxDelay,
+            failureClass.baseDelay << Math.min(attempt - 1, 30));
+        final long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        return Math.min(Math.max(delay, retryAfter), failureClass.maxDelay);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arcana.updater.workers;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+// Number of failed download attempts per FailureClass since the process started
+@Singleton
+public class RetryStats {
+    private final Map<FailureClass, Integer> failures = new EnumMap<>(FailureClass.class);
+    private int reconnects, stalls;
+    private long stallRecoveryTime; // millis
+
+    @Inject
+    public RetryStats() {}
+
+    synchronized void onFailure(FailureClass failureClass) {
+        failures.merge(failureClass, 1, Integer::sum);
+    }
+
+    // Mid-stream resets that were recovered by reconnecting right away
+    synchronized void onReconnects(int count) {
+        reconnects += count;
+    }
+
+    // Stalled transfers that were cancelled, and the total time it took them to recover
+    synchronized void onStalls(int count, long recoveryTime) {
+        stalls += count;
+        stallRecoveryTime += recoveryTime;
+    }
+
+    public synchronized int getFailures(FailureClass failureClass) {
+        return failures.getOrDefault(failureClass, 0);
+    }
+
+    public synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    public synchronized long getStallRecoveryTime() {
+        return stallRecoveryTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryStats[failures = " + failures + ", reconnects = " + reconnects +
+            ", stalls = " + stalls + ", stall recovery = " + stallRecoveryTime + " ms]";
+    }
+}
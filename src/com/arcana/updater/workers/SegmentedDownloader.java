@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.arcana.updater.model.data.ContentValidator;
+import com.arcana.updater.model.data.DownloadSegment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import okio.BufferedSource;
+
+/*
+ * Downloads a list of DownloadSegment's in parallel, one request per
+ * incomplete segment over the shared OkHttpClient, so that connections
+ * (and TLS sessions) are reused across segments, retries and the
+ * metadata fetcher, and multiplexed if the host speaks HTTP/2. Every
+ * segment is requested with an HTTP Range header and written at its own
+ * offset of the (preallocated) target file through positional FileChannel
+ * writes. Segment offsets are advanced only after the data is written,
+ * so they can be persisted at any time to resume later.
+ *
+ * Response data is read through the body's ReadableByteChannel into pooled
+ * direct buffers, which are written out only once full (or at the end of
+ * a segment) to keep the number of write calls and copies per GB low.
+ * Every segment sizes its buffer with a BufferSizer from the observed
+ * read sizes, fill times and write latencies.
+ * Every written buffer is also handed to the DigestTracker, if there is
+ * one. Reads are paced by a RateLimiter shared by all the connections.
+ *
+ * Resumed requests carry the validator (strong ETag or Last-Modified) of
+ * the content in If-Range, and every 206 is checked against its
+ * Content-Range, so data of a changed file or a mismatching range is
+ * never written. A change is reported through isContentChanged().
+ *
+ * Requests go to the current mirror of a MirrorSelector. A segment that
+ * fails is retried on the same or the next mirror from where it stopped,
+ * as long as there are alternatives, otherwise the error is reported.
+ *
+ * If a ChunkVerifier is given, every chunk is verified as soon as it is
+ * written and a corrupt chunk is fetched again with a new request.
+ *
+ * Connects and reads time out, and a StallWatchdog cancels transfers
+ * that keep moving too little data. A segment that stalled reconnects
+ * from its offset right away.
+ *
+ * Transfers can be paused, which parks the reads without closing
+ * the connections, so that resuming continues on the same streams.
+ */
+class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+    private static final int MAX_CHUNK_REPAIRS = 3; // per segment
+    private static final int MAX_RECONNECTS = 5; // per segment
+    private static final int MAX_STALLS = 5; // per segment
+    private static final long CONNECT_TIMEOUT = 15000; // millis
+    private static final long READ_TIMEOUT = 30000; // millis
+    // Transfers moving less than this within the window are stalled
+    private static final long STALL_WINDOW = 20000; // millis
+    private static final long STALL_MIN_BYTES = 16 * 1024;
+    private static final Pattern CONTENT_RANGE_PATTERN =
+        Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final MirrorSelector mirrors;
+    private final File file;
+    private final long fileSize;
+    private final List<DownloadSegment> segments;
+    private final OkHttpClient client;
+    private final List<Call> calls;
+    private final AtomicLong downloadedSize;
+    private final AtomicInteger reconnects;
+    // Incremented by reconnect(), so that segments can tell its cancels from failures
+    private final AtomicInteger reconnectGeneration;
+    // Elapsed realtime of the first read since the start or the last resume, 0 if none yet
+    private final AtomicLong firstReadTime;
+    private final BufferPool bufferPool;
+    private final DigestTracker digestTracker;
+    private final ChunkVerifier chunkVerifier;
+    private final RateLimiter rateLimiter;
+    private final StallWatchdog watchdog;
+    private final int maxConnections;
+    private ExecutorService executor;
+    private CountDownLatch latch;
+    private FileChannel channel;
+    private volatile IOException error;
+    private volatile ContentValidator validator;
+    private volatile boolean stopped, paused, rangeUnsupported, contentChanged;
+
+    SegmentedDownloader(OkHttpClient client, MirrorSelector mirrors, File file, long fileSize,
+            List<DownloadSegment> segments, int maxConnections, BufferPool bufferPool,
+            DigestTracker digestTracker, ChunkVerifier chunkVerifier,
+            RateLimiter rateLimiter, ContentValidator validator) {
+        // Derived client still shares the connection pool
+        this.client = client.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
+            .readTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+            .build();
+        this.mirrors = mirrors;
+        this.file = file;
+        this.fileSize = fileSize;
+        this.segments = segments;
+        this.bufferPool = bufferPool;
+        this.digestTracker = digestTracker;
+        this.chunkVerifier = chunkVerifier;
+        this.rateLimiter = rateLimiter;
+        this.validator = validator;
+        this.maxConnections = Math.max(1, maxConnections);
+        calls = new ArrayList<>();
+        downloadedSize = new AtomicLong(DownloadSegment.getDownloadedSize(segments));
+        reconnects = new AtomicInteger();
+        reconnectGeneration = new AtomicInteger();
+        firstReadTime = new AtomicLong();
+        watchdog = new StallWatchdog(STALL_WINDOW, STALL_MIN_BYTES);
+    }
+
+    // Open the target file and start a request for every incomplete segment
+    void start() throws IOException {
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            throw new StorageException("Opening " + file.getAbsolutePath() + " failed", e);
+        }
+        final List<DownloadSegment> pending = new ArrayList<>();
+        segments.stream().filter(segment -> !segment.isComplete()).forEach(pending::add);
+        latch = new CountDownLatch(pending.size());
+        if (pending.isEmpty()) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(Math.min(pending.size(), maxConnections));
+        pending.forEach(segment -> executor.execute(() -> {
+            try {
+                downloadSegment(segment);
+            } catch (IOException e) {
+                if (!stopped) {
+                    error = e;
+                    stop(); // Tear down the other segments, the worker will retry
+                }
+            } finally {
+                latch.countDown();
+            }
+        }));
+    }
+
+    /*
+     * Wait at most @param timeoutMillis for all the segments to finish.
+     * Returns true if there are no more running segments.
+     */
+    boolean await(long timeoutMillis) throws InterruptedException {
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Stop all the running segments and unblock any pending reads
+    void stop() {
+        stopped = true;
+        synchronized (calls) {
+            calls.forEach(Call::cancel);
+            calls.clear();
+            calls.notifyAll(); // Wake up throttled and paused readers
+        }
+    }
+
+    // Park all the reads, the connections stay open until resume() or stop()
+    void pause() {
+        synchronized (calls) {
+            paused = true;
+        }
+    }
+
+    void resume() {
+        firstReadTime.set(0);
+        synchronized (calls) {
+            paused = false;
+            calls.notifyAll();
+        }
+        watchdog.restart(); // Parked transfers aren't stalled
+    }
+
+    /*
+     * Cancel the running requests without stopping, so that
+     * every segment continues on the current mirror right away.
+     */
+    void reconnect() {
+        synchronized (calls) {
+            reconnectGeneration.incrementAndGet();
+            calls.forEach(Call::cancel);
+            calls.clear();
+        }
+    }
+
+    // Cancel stalled transfers so that they reconnect, called periodically
+    void checkStalls() {
+        watchdog.check();
+    }
+
+    // Release the file and threads, must be called once await returned true
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when closing " + file.getAbsolutePath(), e);
+        }
+    }
+
+    long getDownloadedSize() {
+        return downloadedSize.get();
+    }
+
+    // Number of segments that are transferring right now
+    int getActiveSegments() {
+        final long incomplete = segments.stream().filter(segment -> !segment.isComplete()).count();
+        return (int) Math.min(incomplete, maxConnections);
+    }
+
+    boolean isComplete() {
+        return segments.stream().allMatch(DownloadSegment::isComplete);
+    }
+
+    // Server ignored the Range header, segments can't be used with this url
+    boolean isRangeUnsupported() {
+        return rangeUnsupported;
+    }
+
+    // Content behind the url is not the one the segments were downloaded from
+    boolean isContentChanged() {
+        return contentChanged;
+    }
+
+    // Validator of the content being downloaded, null if the server sent none
+    ContentValidator getValidator() {
+        return validator;
+    }
+
+    // Number of mid-stream resets that were recovered by reconnecting
+    int getReconnects() {
+        return reconnects.get();
+    }
+
+    long getFirstReadTime() {
+        return firstReadTime.get();
+    }
+
+    StallWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    IOException getError() {
+        return error;
+    }
+
+    private void downloadSegment(DownloadSegment segment) throws IOException {
+        ChunkVerifier.Hasher hasher = null;
+        if (chunkVerifier != null) {
+            final long offset = segment.getOffset();
+            hasher = chunkVerifier.newHasher(segment, channel);
+            onRolledBack(segment, offset);
+        }
+        final BufferSizer sizer = new BufferSizer();
+        int repairs = 0, segmentReconnects = 0, segmentStalls = 0;
+        long stalledAt = 0;
+        while (true) {
+            final URL url = mirrors.getCurrent();
+            final long offset = segment.getOffset();
+            final int generation = reconnectGeneration.get();
+            try {
+                if (transferSegment(segment, hasher, sizer, url, stalledAt)) {
+                    return;
+                }
+                stalledAt = 0;
+                if (++repairs > MAX_CHUNK_REPAIRS) {
+                    throw new IOException("Too many corrupt chunks in segment " + segment);
+                }
+            } catch (IOException e) {
+                if (stopped || contentChanged || e instanceof StorageException) {
+                    throw e;
+                }
+                if (reconnectGeneration.get() != generation) {
+                    // Cancelled by reconnect(), not a failure of the segment or the mirror
+                    stalledAt = 0;
+                    continue;
+                }
+                if (url != mirrors.getCurrent()) {
+                    continue; // Switched mirrors meanwhile, this one is out anyway
+                }
+                if (e instanceof StallException && ++segmentStalls <= MAX_STALLS) {
+                    Log.w(TAG, "Segment " + segment + " stalled, reconnecting");
+                    stalledAt = ((StallException) e).stalledAt;
+                    continue;
+                }
+                stalledAt = 0;
+                final FailureClass failureClass = FailureClass.of(e);
+                if (failureClass == FailureClass.TRANSIENT_NETWORK &&
+                        segment.getOffset() > offset &&
+                        ++segmentReconnects <= MAX_RECONNECTS) {
+                    // Reset in the middle of a working stream, just reconnect
+                    Log.w(TAG, "Segment " + segment + " was reset, reconnecting", e);
+                    reconnects.incrementAndGet();
+                    continue;
+                }
+                // Expired urls only work again once the worker refreshed them
+                final boolean unusable = e instanceof UnusableMirrorException ||
+                    failureClass == FailureClass.PERMANENT ||
+                    failureClass == FailureClass.EXPIRED_URL;
+                if (!mirrors.hasAlternatives() || !(unusable ?
+                        mirrors.disable(url) : mirrors.onError(url))) {
+                    if (e instanceof UnusableMirrorException) {
+                        rangeUnsupported = ((UnusableMirrorException) e).rangeUnsupported;
+                        contentChanged = !rangeUnsupported;
+                    }
+                    throw e;
+                }
+                Log.w(TAG, "Segment " + segment + " failed on " + url, e);
+            }
+        }
+    }
+
+    /*
+     * Fetch the rest of @param segment with a new request. Returns false
+     * if a corrupt chunk was found, segment is rolled back to its start then.
+     * @param stalledAt is when the previous request stalled, 0 if it didn't.
+     */
+    private boolean transferSegment(DownloadSegment segment, ChunkVerifier.Hasher hasher,
+            BufferSizer sizer, URL url, long stalledAt) throws IOException {
+        final boolean wholeFile = segment.getOffset() == 0 && segment.getEnd() == fileSize;
+        final Request.Builder requestBuilder = new Request.Builder()
+            .url(url)
+            .header("Accept-Encoding", "identity"); // Byte offsets have to match the file
+        final ContentValidator currValidator = validator;
+        final String expectedValidator = currValidator != null &&
+            currValidator.getUrl().equals(url.toString()) ? currValidator.getValue() : null;
+        if (!wholeFile) {
+            requestBuilder.header("Range", String.format("bytes=%d-%d",
+                segment.getOffset(), segment.getEnd() - 1));
+            if (expectedValidator != null) {
+                // Server sends the whole (new) file instead if it changed
+                requestBuilder.header("If-Range", expectedValidator);
+            }
+        }
+        awaitResume(); // Don't open a connection just to park it
+        final Call call = client.newCall(requestBuilder.build());
+        synchronized (calls) {
+            if (stopped) {
+                return true;
+            }
+            calls.add(call);
+        }
+        final StallWatchdog.Transfer transfer = watchdog.watch(call, stalledAt);
+        ByteBuffer buffer = bufferPool.acquire(sizer.getSize());
+        try (Response response = call.execute()) {
+            final int responseCode = response.code();
+            if (responseCode != HTTP_PARTIAL && responseCode != HTTP_OK) {
+                throw new HttpStatusException("Unexpected response code " + responseCode +
+                    " for segment " + segment + " from " + url, responseCode,
+                    getRetryAfter(response));
+            }
+            checkValidator(response, url, expectedValidator);
+            final BufferedSource source = response.body().source();
+            if (responseCode == HTTP_PARTIAL) {
+                skipToOffset(response, source, segment);
+            } else if (!wholeFile) {
+                throw new UnusableMirrorException("Range request for segment " +
+                    segment + " was answered with the whole file by " + url, true);
+            }
+            boolean eof = false;
+            while (!stopped && !eof && !segment.isComplete()) {
+                if (buffer.capacity() != sizer.getSize()) {
+                    bufferPool.release(buffer);
+                    buffer = bufferPool.acquire(sizer.getSize());
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), segment.getRemaining()));
+                final long fillStart = System.nanoTime();
+                while (!stopped && buffer.hasRemaining()) {
+                    awaitResume();
+                    final int bytesRead = source.read(buffer);
+                    if (bytesRead == -1) {
+                        eof = true;
+                        break;
+                    }
+                    if (firstReadTime.get() == 0) {
+                        firstReadTime.compareAndSet(0, SystemClock.elapsedRealtime());
+                    }
+                    sizer.onRead(bytesRead);
+                    transfer.onRead(bytesRead);
+                    throttle(bytesRead);
+                }
+                buffer.flip();
+                final int bytes = buffer.remaining();
+                final long writeStart = System.nanoTime();
+                final int corrupt = writeBuffer(buffer, segment, hasher);
+                sizer.onBufferDone(bytes, writeStart - fillStart,
+                    System.nanoTime() - writeStart);
+                if (corrupt != -1) {
+                    Log.w(TAG, "Chunk " + corrupt + " is corrupt, fetching it again");
+                    final long offset = segment.getOffset();
+                    segment.setOffset(chunkVerifier.getChunkStart(corrupt));
+                    hasher.reset(segment.getOffset());
+                    onRolledBack(segment, offset);
+                    return false;
+                }
+            }
+            if (!stopped && !segment.isComplete()) {
+                throw new IOException("Unexpected end of stream for segment " + segment);
+            }
+            return true;
+        } catch (IOException e) {
+            if (transfer.isStalled() && !stopped && !(e instanceof StorageException)) {
+                throw new StallException("Segment " + segment + " stalled on " + url, e);
+            }
+            throw e;
+        } finally {
+            watchdog.unwatch(transfer);
+            bufferPool.release(buffer);
+            synchronized (calls) {
+                calls.remove(call);
+            }
+        }
+    }
+
+    /*
+     * Check the validator of @param response from @param url against
+     * @param expected, or against the one other segments learned from
+     * the same url if nothing was expected yet. Validators of another
+     * mirror are just replaced.
+     */
+    private void checkValidator(Response response, URL url,
+            String expected) throws IOException {
+        final String received = getValidator(response);
+        if (received == null) {
+            return;
+        }
+        synchronized (this) {
+            if (validator == null || !validator.getUrl().equals(url.toString())) {
+                validator = new ContentValidator(url.toString(), received);
+            } else if (!validator.getValue().equals(received) || (expected != null &&
+                    !expected.equals(received))) {
+                contentChanged = true;
+            }
+        }
+        if (contentChanged) {
+            throw new IOException("Content changed, expected " + expected +
+                " but received " + received);
+        }
+    }
+
+    // Delay in millis from a Retry-After header in seconds, 0 if missing or a date
+    private static long getRetryAfter(Response response) {
+        final String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                // HTTP dates are rare enough to not bother
+            }
+        }
+        return 0;
+    }
+
+    // Strong ETag if available, since weak ones can't be used with If-Range
+    private static String getValidator(Response response) {
+        final String eTag = response.header("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /*
+     * Validate the Content-Range of a 206 @param response for @param segment,
+     * discarding any leading bytes in case it starts before the offset.
+     */
+    private void skipToOffset(Response response, BufferedSource source,
+            DownloadSegment segment) throws IOException {
+        final String contentRange = response.header("Content-Range");
+        final Matcher matcher = contentRange == null ? null :
+            CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("Invalid Content-Range " + contentRange +
+                " for segment " + segment);
+        }
+        final long start = Long.parseLong(matcher.group(1));
+        final long end = Long.parseLong(matcher.group(2));
+        final String total = matcher.group(3);
+        if (!total.equals("*") && Long.parseLong(total) != fileSize) {
+            throw new UnusableMirrorException("Content-Range " + contentRange +
+                " doesn't match file size " + fileSize, false);
+        }
+        if (start > segment.getOffset() || end < segment.getOffset()) {
+            throw new IOException("Content-Range " + contentRange +
+                " doesn't cover segment " + segment);
+        }
+        source.skip(segment.getOffset() - start);
+    }
+
+    /*
+     * Write out the contents of @param buffer at the segment's offset and advance it.
+     * Returns the index of a chunk found to be corrupt by @param hasher, or -1.
+     */
+    private int writeBuffer(ByteBuffer buffer, DownloadSegment segment,
+            ChunkVerifier.Hasher hasher) throws IOException {
+        final ByteBuffer written = buffer.duplicate();
+        final ByteBuffer verified = buffer.duplicate();
+        final long start = segment.getOffset();
+        long position = start;
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Writing to " + file.getAbsolutePath() + " failed", e);
+        }
+        segment.setOffset(position);
+        downloadedSize.addAndGet(written.remaining());
+        if (digestTracker != null) {
+            digestTracker.onWritten(start, written);
+        }
+        return hasher == null ? -1 : hasher.update(verified);
+    }
+
+    // Wait as long as the rate limiter asks for, or until stopped
+    private void throttle(int bytesRead) throws IOException {
+        final long delay = rateLimiter.acquire(bytesRead);
+        if (delay <= 0) {
+            return;
+        }
+        synchronized (calls) {
+            if (stopped) {
+                return;
+            }
+            try {
+                calls.wait(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    // Wait while paused, or until stopped
+    private void awaitResume() throws IOException {
+        synchronized (calls) {
+            while (paused && !stopped) {
+                try {
+                    calls.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while paused");
+                }
+            }
+        }
+    }
+
+    // Account for @param segment being moved back from @param oldOffset
+    private void onRolledBack(DownloadSegment segment, long oldOffset) {
+        if (segment.getOffset() < oldOffset) {
+            downloadedSize.addAndGet(segment.getOffset() - oldOffset);
+            if (digestTracker != null) {
+                digestTracker.invalidateFrom(segment.getOffset());
+            }
+        }
+    }
+
+    // Request was cancelled by the watchdog because it stalled
+    private static final class StallException extends SocketTimeoutException {
+        final long stalledAt = SystemClock.elapsedRealtime();
+
+        StallException(String message, IOException cause) {
+            super(message);
+            initCause(cause);
+        }
+    }
+
+    /*
+     * A mirror doesn't do range requests (@param rangeUnsupported)
+     * or serves another file, either way it can't be used anymore.
+     */
+    private static final class UnusableMirrorException extends IOException {
+        final boolean rangeUnsupported;
+
+        UnusableMirrorException(String message, boolean rangeUnsupported) {
+            super(message);
+            this.rangeUnsupported = rangeUnsupported;
+        }
+    }
+}
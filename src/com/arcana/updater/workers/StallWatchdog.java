@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arcana.updater.workers;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+
+/*
+ * Watches the transfers of a download for stalls. A transfer is stalled
+ * once it moved less than minBytes within a window, be it a half open
+ * connection or a trickle that keeps the read timeout from firing. The
+ * call of a stalled transfer is cancelled so that its segment can
+ * reconnect from where it stopped. The threshold is far below any rate
+ * limit, so throttled transfers never count as stalled.
+ */
+final class StallWatchdog {
+    private final long window; // millis
+    private final long minBytes;
+    private final List<Transfer> transfers = new ArrayList<>();
+    private int stalls, recoveries;
+    private long totalRecoveryTime, maxRecoveryTime; // millis
+
+    StallWatchdog(long window, long minBytes) {
+        this.window = window;
+        this.minBytes = minBytes;
+    }
+
+    /*
+     * Start watching @param call. @param stalledAt is the time the
+     * previous transfer of the same segment stalled, 0 if it didn't,
+     * to measure how long it takes until data flows again.
+     */
+    synchronized Transfer watch(Call call, long stalledAt) {
+        final Transfer transfer = new Transfer(call, stalledAt);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    synchronized void unwatch(Transfer transfer) {
+        transfers.remove(transfer);
+    }
+
+    // Cancel the transfers that stalled, called periodically
+    synchronized void check() {
+        final long now = SystemClock.elapsedRealtime();
+        transfers.removeIf(transfer -> {
+            if (!transfer.checkStalled(now)) {
+                return false;
+            }
+            stalls++;
+            transfer.call.cancel();
+            return true;
+        });
+    }
+
+    // Start a new window for every transfer, for when they were parked on purpose
+    synchronized void restart() {
+        final long now = SystemClock.elapsedRealtime();
+        transfers.forEach(transfer -> transfer.restart(now));
+    }
+
+    synchronized int getStalls() {
+        return stalls;
+    }
+
+    // Total time from stalls until data was received again, in millis
+    synchronized long getTotalRecoveryTime() {
+        return totalRecoveryTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StallWatchdog[stalls = " + stalls + ", recoveries = " + recoveries +
+            ", mean recovery = " + (recoveries > 0 ? totalRecoveryTime / recoveries : 0) +
+            " ms, max recovery = " + maxRecoveryTime + " ms]";
+    }
+
+    private synchronized void onRecovered(long recoveryTime) {
+        recoveries++;
+        totalRecoveryTime += recoveryTime;
+        maxRecoveryTime = Math.max(maxRecoveryTime, recoveryTime);
+    }
+
+    final class Transfer {
+        private final Call call;
+        private long stalledAt;
+        private volatile long bytes;
+        // Guarded by the watchdog
+        private long windowStart, windowBytes;
+        private volatile boolean stalled;
+
+        private Transfer(Call call, long stalledAt) {
+            this.call = call;
+            this.stalledAt = stalledAt;
+            windowStart = SystemClock.elapsedRealtime();
+        }
+
+        // Called by the reading thread for every read of @param count bytes
+        void onRead(int count) {
+            bytes += count;
+            if (stalledAt > 0) {
+                onRecovered(SystemClock.elapsedRealtime() - stalledAt);
+                stalledAt = 0;
+            }
+        }
+
+        // True if the call was cancelled because it stalled
+        boolean isStalled() {
+            return stalled;
+        }
+
+        private void restart(long now) {
+            windowStart = now;
+            windowBytes = bytes;
+        }
+
+        private boolean checkStalled(long now) {
+            if (now - windowStart < window) {
+                return false;
+            }
+            final long received = bytes;
+            if (received - windowBytes < minBytes) {
+                stalled = true;
+                return true;
+            }
+            windowStart = now;
+            windowBytes = received;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2021 AOSP-Krypton Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.arcana.updater.workers;
+
+import static com.arcana.updater.util.Constants.MB;
+
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.arcana.updater.model.data.DownloadSegment;
+import com.arcana.updater.model.data.OTAFileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Makes sure the volumes a download touches have room for it before
+ * the first byte is transferred, instead of running into ENOSPC half way.
+ */
+final class StoragePlanner {
+    private static final String TAG = "StoragePlanner";
+    private static final long HEADROOM = 64L * MB; // Left free for everyone else
+    private static final long BLOCK_UNIT = 512; // st_blocks unit
+
+    private final OTAFileManager ofm;
+    private final File cacheDir;
+
+    // @param cacheDir holds downloads of older versions, can be cleaned up
+    StoragePlanner(OTAFileManager ofm, File cacheDir) {
+        this.ofm = ofm;
+        this.cacheDir = cacheDir;
+    }
+
+    /*
+     * Allocate all the blocks of @param file for @param size bytes up front,
+     * so that the transfer can't run out of space and the file isn't
+     * fragmented. Stale files are deleted first if there isn't enough space.
+     * Blocks that are already allocated are kept, so this is cheap on resume.
+     * The file has its full length from here on, so its length says nothing
+     * about what was written. Only checkpoints, which are persisted after
+     * the data is flushed, tell that.
+     */
+    void allocate(File file, long size) throws StorageException {
+        reserve(file, size - getAllocatedSize(file));
+        preallocate(file, size, Collections.singletonList(new DownloadSegment(0, size, 0)));
+    }
+
+    /*
+     * Like allocate(), but only for the data @param segments still have
+     * to write, the parts of the file that are skipped stay holes.
+     */
+    void allocateSparse(File file, long size,
+            List<DownloadSegment> segments) throws StorageException {
+        reserve(file, DownloadSegment.getRemainingSize(segments));
+        preallocate(file, size, segments);
+    }
+
+    // Make sure there are @param needed more bytes available for @param file
+    private void reserve(File file, long needed) throws StorageException {
+        if (getAvailableBytes(file) < needed + HEADROOM) {
+            Log.w(TAG, "Not enough space for " + file.getAbsolutePath() +
+                ", deleting stale files");
+            ofm.deleteStaleFiles(file);
+            final File[] cached = cacheDir == null ? null : cacheDir.listFiles();
+            if (cached != null) {
+                for (File cachedFile : cached) {
+                    cachedFile.delete();
+                }
+            }
+            final long available = getAvailableBytes(file);
+            if (available < needed + HEADROOM) {
+                throw new StorageException("Need " + needed + " bytes for " +
+                    file.getAbsolutePath() + " but only " + available + " are available", null);
+            }
+        }
+    }
+
+    private static void preallocate(File file, long size,
+            List<DownloadSegment> segments) throws StorageException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            try {
+                for (DownloadSegment segment : segments) {
+                    if (!segment.isComplete()) {
+                        Os.posix_fallocate(raf.getFD(), segment.getOffset(),
+                            segment.getRemaining());
+                    }
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS) {
+                    throw e.rethrowAsIOException();
+                }
+                // Filesystem can't preallocate, a sparse file still avoids appends
+            }
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Allocating " + file.getAbsolutePath() + " failed", e);
+        }
+    }
+
+    // Returns true if a new @param file of @param size bytes fits on its volume
+    boolean fits(File file, long size) {
+        return getAvailableBytes(file) >= size + HEADROOM;
+    }
+
+    private static long getAvailableBytes(File file) {
+        try {
+            return new StatFs(file.getParentFile().getAbsolutePath()).getAvailableBytes();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to stat volume of " + file.getAbsolutePath(), e);
+            return 0;
+        }
+    }
+
+    private static long getAllocatedSize(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Os.stat(file.getAbsolutePath()).st_blocks * BLOCK_UNIT;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+}